@@ -0,0 +1,140 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a Sketch offscreen in parallel, for exports, thumbnails and warming caches.
+ *
+ * The output is cut into horizontal bands, one fork-join task per band. Each task draws into its own
+ * BufferedImage, clipped to the band, and only the shapes whose bounds reach into the band, in stacking order;
+ * the bands are then copied into the final image. Shapes are dealt out to bands in one pass over the sketch,
+ * so the work per band is proportional to what shows in it.
+ */
+public class BandedRenderer {
+	private final ForkJoinPool pool;		// runs the band tasks
+	private final int bandHeight;			// rows per band, in output pixels
+
+	/**
+	 * A renderer on the common fork-join pool, with bands sized to give each core a few
+	 */
+	public BandedRenderer() {
+		this(ForkJoinPool.commonPool(), 0);
+	}
+
+	/**
+	 * @param pool Runs the band tasks
+	 * @param bandHeight Rows per band, or 0 to pick them so each of the pool's threads gets about four bands
+	 */
+	public BandedRenderer(ForkJoinPool pool, int bandHeight) {
+		this.pool = pool;
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * Renders the sketch at full size onto a white background
+	 * @param sketch The sketch to render
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return The image
+	 */
+	public BufferedImage render(Sketch sketch, int width, int height) {
+		return render(sketch, width, height, 1.0);
+	}
+
+	/**
+	 * Renders the sketch, scaled, onto a white background
+	 * @param sketch The sketch to render
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param scale Output pixels per sketch unit, e.g. 0.25 for a quarter-size thumbnail
+	 * @return The image
+	 */
+	public BufferedImage render(Sketch sketch, int width, int height, double scale) {
+		return render(sketch.getShapes(), width, height, scale);
+	}
+
+	/**
+	 * Renders shapes, scaled, onto a white background; given a snapshot from Sketch.getShapes(), the sketch
+	 * is only locked for taking it, not for drawing
+	 * @param shapes The shapes, in stacking order
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param scale Output pixels per sketch unit
+	 * @return The image
+	 */
+	public BufferedImage render(List<Shape> shapes, int width, int height, double scale) {
+		int rows = bandHeight > 0 ? bandHeight
+				: Math.max(16, (height + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+		int bands = (height + rows - 1) / rows;
+
+		// Deal the shapes out to the bands their bounds reach, keeping stacking order within each band
+		List<List<Shape>> perBand = new ArrayList<List<Shape>>(bands);
+		for (int b = 0; b < bands; b++) perBand.add(new ArrayList<Shape>());
+		for (Shape shape : shapes) {
+			java.awt.Rectangle bounds = shape.getBounds();
+			if (bounds.x * scale >= width || (bounds.x + bounds.width) * scale < 0) continue;
+			// a pixel of slack either side, for strokes rounded outward when scaled
+			int first = (int) Math.floor(bounds.y * scale - 1) / rows;
+			int last = (int) Math.floor((bounds.y + bounds.height) * scale + 1) / rows;
+			for (int b = Math.max(0, first); b <= Math.min(bands - 1, last); b++) {
+				perBand.get(b).add(shape);
+			}
+		}
+
+		BufferedImage[] images = new BufferedImage[bands];
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(bands);
+				for (int b = 0; b < bands; b++) {
+					int band = b;
+					tasks.add(new RecursiveAction() {
+						@Override
+						protected void compute() {
+							images[band] = renderBand(perBand.get(band), width, Math.min(rows, height - band * rows),
+									band * rows, scale);
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		for (int b = 0; b < bands; b++) {
+			g.drawImage(images[b], 0, b * rows, null);
+		}
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Renders one band
+	 * @param shapes The shapes reaching into the band, in stacking order
+	 * @param width Width of the band
+	 * @param height Height of the band
+	 * @param top Output row the band starts at
+	 * @param scale Output pixels per sketch unit
+	 */
+	private static BufferedImage renderBand(List<Shape> shapes, int width, int height, int top, double scale) {
+		BufferedImage band = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = band.createGraphics();
+		g.setColor(Color.white);
+		g.fillRect(0, 0, width, height);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		g.clipRect(0, 0, width, height);
+		g.translate(0, -top);
+		g.scale(scale, scale);
+		for (Shape shape : shapes) {
+			shape.draw(g);
+		}
+		g.dispose();
+		return band;
+	}
+}
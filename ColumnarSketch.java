@@ -0,0 +1,547 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Sketch that keeps its shapes off the heap, one column per field, for boards with millions of shapes.
+ *
+ * Each shape is a slot across direct buffers: type, ID, corners (a polyline's bounding box), packed RGB,
+ * and for polylines where their segments start in a shared points column. Slots are in stacking order;
+ * deleting leaves a hole that is squeezed out once holes outnumber shapes. A polyline redrawn with no more segments
+ * than it had is rewritten where it stands, and with more is appended to the points column; the segments left
+ * behind are squeezed out along with the holes, or once they outnumber the segments in use. IDs find their slots through
+ * an open-addressing table of primitive arrays. Drawing and hit testing run straight over the columns,
+ * so the garbage collector sees a handful of objects however large the board; Shape objects are only
+ * made when asked for, as views that read and write the columns.
+ */
+public class ColumnarSketch extends Sketch {
+	private static final byte NONE = 0, ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, POLYLINE = 4;	// slot types
+	private static final String[] NAMES = {null, "ellipse", "rectangle", "segment", "polyline"};
+
+	private ByteBuffer types;		// slot -> type, NONE for a deleted shape
+	private LongBuffer ids;			// slot -> ID
+	private IntBuffer corners;		// slot -> x1 y1 x2 y2
+	private IntBuffer rgbs;			// slot -> color
+	private IntBuffer polyStart;	// slot -> first segment in points, for polylines
+	private IntBuffer polyCount;	// slot -> number of segments, for polylines
+	private IntBuffer points;		// segments of all polylines, x1 y1 x2 y2 each
+	private int slots = 0;			// slots used, including holes
+	private int live = 0;			// slots holding shapes
+	private int pointsUsed = 0;		// segments used in points
+	private int pointsLive = 0;		// segments of the polylines still in the sketch; the rest of pointsUsed is waste
+	private final LongIntMap slotOf = new LongIntMap();
+
+	public ColumnarSketch() {
+		allocate(1024, 1024);
+	}
+
+	private void allocate(int capacity, int segments) {
+		types = ByteBuffer.allocateDirect(capacity);
+		ids = direct(capacity * 8).asLongBuffer();
+		corners = direct(capacity * 16).asIntBuffer();
+		rgbs = direct(capacity * 4).asIntBuffer();
+		polyStart = direct(capacity * 4).asIntBuffer();
+		polyCount = direct(capacity * 4).asIntBuffer();
+		points = direct(segments * 16).asIntBuffer();
+	}
+
+	private static ByteBuffer direct(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Makes sure there is room for one more slot and the given number of polyline segments
+	 */
+	private void ensureCapacity(int segments) {
+		if (slots == types.capacity()) {
+			int capacity = types.capacity() * 2;
+			ByteBuffer t = ByteBuffer.allocateDirect(capacity);
+			t.put(0, types, 0, slots);
+			types = t;
+			LongBuffer i = direct(capacity * 8).asLongBuffer();
+			i.put(0, ids, 0, slots);
+			ids = i;
+			corners = grow(corners, capacity * 4, slots * 4);
+			rgbs = grow(rgbs, capacity, slots);
+			polyStart = grow(polyStart, capacity, slots);
+			polyCount = grow(polyCount, capacity, slots);
+		}
+		if ((pointsUsed + segments) * 4 > points.capacity()) {
+			points = grow(points, Math.max(points.capacity() * 2, (pointsUsed + segments) * 4), pointsUsed * 4);
+		}
+	}
+
+	private static IntBuffer grow(IntBuffer old, int capacity, int used) {
+		IntBuffer grown = direct(capacity * 4).asIntBuffer();
+		grown.put(0, old, 0, used);
+		return grown;
+	}
+
+	public synchronized int size() {
+		return live;
+	}
+
+	@Override
+	public synchronized void add(long id, Shape s) {
+		long start = System.nanoTime();
+		String[] parts = s.toString().split(" ");
+		int slot = slotOf.get(id);
+		if (slot < 0) {
+			ensureCapacity(parts[0].equals("polyline") ? (parts.length - 2) / 4 : 0);
+			slot = slots++;
+			live++;
+			types.put(slot, NONE);	// maybe left over from before a compaction
+			ids.put(slot, id);
+			slotOf.put(id, slot);
+		}
+		else {
+			ensureCapacity(parts[0].equals("polyline") ? (parts.length - 2) / 4 : 0);
+		}
+		write(slot, parts);
+		edited(id);
+		if (wasteful()) compact();
+		held(start);
+	}
+
+	/**
+	 * Fills a slot's columns from a shape's toString() form; a polyline goes where the slot's old one was, if it fits
+	 */
+	private void write(int slot, String[] parts) {
+		byte type = (byte) Arrays.asList(NAMES).indexOf(parts[0]);
+		if (type <= 0) throw new IllegalArgumentException("unknown shape " + parts[0]);
+		int reusable = 0;	// segments of the slot's old polyline, free for the new shape
+		if (types.get(slot) == POLYLINE) {
+			reusable = polyCount.get(slot);
+			pointsLive -= reusable;
+		}
+		types.put(slot, type);
+		rgbs.put(slot, Integer.parseInt(parts[parts.length - 1]));
+		if (type != POLYLINE) {
+			int x1 = Integer.parseInt(parts[1]), y1 = Integer.parseInt(parts[2]);
+			int x2 = Integer.parseInt(parts[3]), y2 = Integer.parseInt(parts[4]);
+			setCorners(slot, x1, y1, x2, y2);
+			return;
+		}
+		int count = (parts.length - 2) / 4;
+		int at = polyStart.get(slot);
+		if (count > reusable) {
+			at = pointsUsed;
+			pointsUsed += count;
+		}
+		polyStart.put(slot, at);
+		polyCount.put(slot, count);
+		pointsLive += count;
+		for (int i = 1; i + 4 < parts.length; i += 4, at++) {
+			for (int k = 0; k < 4; k++) points.put(at * 4 + k, Integer.parseInt(parts[i + k]));
+		}
+		polylineBounds(slot);
+	}
+
+	private void setCorners(int slot, int x1, int y1, int x2, int y2) {
+		corners.put(slot * 4, x1);
+		corners.put(slot * 4 + 1, y1);
+		corners.put(slot * 4 + 2, x2);
+		corners.put(slot * 4 + 3, y2);
+	}
+
+	/**
+	 * Sets a polyline's corners to the bounding box of its segments
+	 */
+	private void polylineBounds(int slot) {
+		int first = polyStart.get(slot) * 4, end = first + polyCount.get(slot) * 4;
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int p = first; p < end; p += 2) {
+			minX = Math.min(minX, points.get(p));
+			maxX = Math.max(maxX, points.get(p));
+			minY = Math.min(minY, points.get(p + 1));
+			maxY = Math.max(maxY, points.get(p + 1));
+		}
+		if (first == end) minX = minY = maxX = maxY = 0;
+		setCorners(slot, minX, minY, maxX, maxY);
+	}
+
+	@Override
+	public synchronized long contains(int x, int y) {
+		long start = System.nanoTime();
+		try {
+			for (int slot = slots - 1; slot >= 0; slot--) {
+				if (types.get(slot) != NONE && hit(slot, x, y)) return ids.get(slot);
+			}
+			return -1;
+		}
+		finally {
+			held(start);
+		}
+	}
+
+	/**
+	 * Hit test for one slot, with the same geometry as the Shape classes
+	 */
+	private boolean hit(int slot, int x, int y) {
+		int c = slot * 4;
+		int x1 = corners.get(c), y1 = corners.get(c + 1), x2 = corners.get(c + 2), y2 = corners.get(c + 3);
+		switch (types.get(slot)) {
+			case ELLIPSE:
+				double a = (x2 - x1) / 2.0, b = (y2 - y1) / 2.0;
+				double dx = x - (x1 + a), dy = y - (y1 + b);
+				return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+			case RECTANGLE:
+				return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+			case SEGMENT:
+				return Segment.pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+			case POLYLINE:
+				if (x < x1 - 3 || x > x2 + 3 || y < y1 - 3 || y > y2 + 3) return false;
+				int first = polyStart.get(slot) * 4, end = first + polyCount.get(slot) * 4;
+				for (int p = first; p < end; p += 4) {
+					if (Segment.pointToSegmentDistance(x, y, points.get(p), points.get(p + 1),
+							points.get(p + 2), points.get(p + 3)) <= 3) return true;
+				}
+				return false;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * A straight scan of the corner columns rather than Sketch's grid, whose boxed IDs would put back on the heap
+	 * the per-shape objects this class exists to avoid
+	 */
+	@Override
+	public synchronized List<Long> within(java.awt.Rectangle area) {
+		long start = System.nanoTime();
+		List<Long> inside = new ArrayList<Long>();
+		for (int slot = 0; slot < slots; slot++) {
+			if (types.get(slot) == NONE) continue;
+			int c = slot * 4;
+			int x1 = corners.get(c), y1 = corners.get(c + 1), x2 = corners.get(c + 2), y2 = corners.get(c + 3);
+			if (area.contains(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1)) {
+				inside.add(ids.get(slot));
+			}
+		}
+		held(start);
+		return inside;
+	}
+
+	@Override
+	public synchronized void draw(Graphics g) {
+		long start = System.nanoTime();
+		int lastRgb = 0;
+		Color color = null;
+		for (int slot = 0; slot < slots; slot++) {
+			byte type = types.get(slot);
+			if (type == NONE) continue;
+			int rgb = rgbs.get(slot);
+			if (color == null || rgb != lastRgb) {
+				color = new Color(rgb);
+				lastRgb = rgb;
+				g.setColor(color);
+			}
+			drawSlot(g, slot, type);
+		}
+		held(start);
+	}
+
+	private void drawSlot(Graphics g, int slot, byte type) {
+		int c = slot * 4;
+		int x1 = corners.get(c), y1 = corners.get(c + 1), x2 = corners.get(c + 2), y2 = corners.get(c + 3);
+		switch (type) {
+			case ELLIPSE:
+				g.fillOval(x1, y1, x2 - x1, y2 - y1);
+				break;
+			case RECTANGLE:
+				g.fillRect(x1, y1, x2 - x1, y2 - y1);
+				break;
+			case SEGMENT:
+				g.drawLine(x1, y1, x2, y2);
+				break;
+			case POLYLINE:
+				int first = polyStart.get(slot) * 4, end = first + polyCount.get(slot) * 4;
+				for (int p = first; p < end; p += 4) {
+					g.drawLine(points.get(p), points.get(p + 1), points.get(p + 2), points.get(p + 3));
+				}
+				break;
+		}
+	}
+
+	@Override
+	public synchronized void move(long id, int dx, int dy) {
+		long start = System.nanoTime();
+		int slot = slotOf.get(id);
+		if (slot >= 0) {
+			int c = slot * 4;
+			setCorners(slot, corners.get(c) + dx, corners.get(c + 1) + dy, corners.get(c + 2) + dx, corners.get(c + 3) + dy);
+			if (types.get(slot) == POLYLINE) {
+				int first = polyStart.get(slot) * 4, end = first + polyCount.get(slot) * 4;
+				for (int p = first; p < end; p += 2) {
+					points.put(p, points.get(p) + dx);
+					points.put(p + 1, points.get(p + 1) + dy);
+				}
+			}
+			edited(id);
+		}
+		held(start);
+	}
+
+	@Override
+	public synchronized void recolor(long id, Color c) {
+		long start = System.nanoTime();
+		int slot = slotOf.get(id);
+		if (slot >= 0) {
+			rgbs.put(slot, c.getRGB());
+			edited(id);
+		}
+		held(start);
+	}
+
+	@Override
+	public synchronized void delete(long id) {
+		long start = System.nanoTime();
+		int slot = slotOf.remove(id);
+		if (slot >= 0) {
+			if (types.get(slot) == POLYLINE) pointsLive -= polyCount.get(slot);
+			types.put(slot, NONE);
+			live--;
+			edited(~id);
+			if (wasteful()) compact();
+		}
+		held(start);
+	}
+
+	/**
+	 * Whether holes outnumber shapes, or segments no polyline uses outnumber those in use, by enough to squeeze out
+	 */
+	private boolean wasteful() {
+		return slots > 1024 && live < slots / 2 || pointsUsed > 4096 && pointsUsed - pointsLive > pointsLive;
+	}
+
+	/**
+	 * Squeezes out deleted slots and unused polyline segments, keeping stacking order
+	 */
+	private void compact() {
+		IntBuffer newPoints = direct(Math.max(16, pointsUsed * 16)).asIntBuffer();
+		int to = 0, newPointsUsed = 0;
+		for (int from = 0; from < slots; from++) {
+			byte type = types.get(from);
+			if (type == NONE) continue;
+			types.put(to, type);
+			ids.put(to, ids.get(from));
+			for (int k = 0; k < 4; k++) corners.put(to * 4 + k, corners.get(from * 4 + k));
+			rgbs.put(to, rgbs.get(from));
+			if (type == POLYLINE) {
+				int count = polyCount.get(from);
+				newPoints.put(newPointsUsed * 4, points, polyStart.get(from) * 4, count * 4);
+				polyStart.put(to, newPointsUsed);
+				polyCount.put(to, count);
+				newPointsUsed += count;
+			}
+			slotOf.put(ids.get(to), to);
+			to++;
+		}
+		slots = to;
+		points = newPoints;
+		pointsUsed = pointsLive = newPointsUsed;
+	}
+
+	/**
+	 * The shape as a string in the Shape classes' toString() form
+	 */
+	private String describe(int slot) {
+		StringBuilder sb = new StringBuilder(NAMES[types.get(slot)]);
+		if (types.get(slot) == POLYLINE) {
+			int first = polyStart.get(slot) * 4, end = first + polyCount.get(slot) * 4;
+			for (int p = first; p < end; p++) sb.append(' ').append(points.get(p));
+		}
+		else {
+			for (int k = 0; k < 4; k++) sb.append(' ').append(corners.get(slot * 4 + k));
+		}
+		return sb.append(' ').append(rgbs.get(slot)).toString();
+	}
+
+	@Override
+	public synchronized Shape getShapeById(long id) {
+		return slotOf.get(id) >= 0 ? new View(id) : null;
+	}
+
+	@Override
+	public synchronized Map<Long, Shape> getMap() {
+		Map<Long, Shape> map = new LinkedHashMap<Long, Shape>();
+		for (int slot = 0; slot < slots; slot++) {
+			if (types.get(slot) != NONE) map.put(ids.get(slot), new View(ids.get(slot)));
+		}
+		return map;
+	}
+
+	@Override
+	public synchronized List<Shape> getShapes() {
+		List<Shape> shapes = new ArrayList<Shape>(live);
+		for (int slot = 0; slot < slots; slot++) {
+			if (types.get(slot) != NONE) shapes.add(new View(ids.get(slot)));
+		}
+		return shapes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long start = System.nanoTime();
+		StringBuilder sb = new StringBuilder();
+		for (int slot = 0; slot < slots; slot++) {
+			if (types.get(slot) != NONE) {
+				sb.append("draw ").append(ids.get(slot)).append(" ").append(describe(slot)).append("\n");
+			}
+		}
+		held(start);
+		return sb.toString();
+	}
+
+	/**
+	 * A Shape standing for one of the sketch's shapes, reading and writing its columns
+	 */
+	private class View implements Shape {
+		private final long id;
+
+		View(long id) {
+			this.id = id;
+		}
+
+		@Override
+		public void moveBy(int dx, int dy) {
+			move(id, dx, dy);
+		}
+
+		@Override
+		public boolean contains(int x, int y) {
+			synchronized (ColumnarSketch.this) {
+				int slot = slotOf.get(id);
+				return slot >= 0 && hit(slot, x, y);
+			}
+		}
+
+		@Override
+		public Color getColor() {
+			synchronized (ColumnarSketch.this) {
+				int slot = slotOf.get(id);
+				return slot >= 0 ? new Color(rgbs.get(slot)) : null;
+			}
+		}
+
+		@Override
+		public void setColor(Color color) {
+			recolor(id, color);
+		}
+
+		@Override
+		public void draw(Graphics g) {
+			synchronized (ColumnarSketch.this) {
+				int slot = slotOf.get(id);
+				if (slot < 0) return;
+				g.setColor(new Color(rgbs.get(slot)));
+				drawSlot(g, slot, types.get(slot));
+			}
+		}
+
+		@Override
+		public java.awt.Rectangle getBounds() {
+			synchronized (ColumnarSketch.this) {
+				int slot = slotOf.get(id);
+				if (slot < 0) return new java.awt.Rectangle();
+				int c = slot * 4;
+				int x1 = corners.get(c), y1 = corners.get(c + 1), x2 = corners.get(c + 2), y2 = corners.get(c + 3);
+				return new java.awt.Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
+			}
+		}
+
+		@Override
+		public String toString() {
+			synchronized (ColumnarSketch.this) {
+				int slot = slotOf.get(id);
+				return slot >= 0 ? describe(slot) : "";
+			}
+		}
+	}
+
+	/**
+	 * Map from long keys to non-negative ints, with open addressing over two arrays rather than an object per entry
+	 */
+	private static class LongIntMap {
+		private static final long EMPTY = Long.MIN_VALUE;
+		private long[] keys = newKeys(2048);
+		private int[] values = new int[2048];
+		private int size = 0;
+
+		private static long[] newKeys(int capacity) {
+			long[] keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			return keys;
+		}
+
+		private int indexOf(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+		}
+
+		/**
+		 * @return The value for key, or -1 if there is none
+		 */
+		int get(long key) {
+			for (int i = indexOf(key); ; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == key) return values[i];
+				if (keys[i] == EMPTY) return -1;
+			}
+		}
+
+		void put(long key, int value) {
+			if ((size + 1) * 2 > keys.length) rehash(keys.length * 2);
+			int i = indexOf(key);
+			while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & (keys.length - 1);
+			if (keys[i] == EMPTY) size++;
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		/**
+		 * Removes key, shifting later entries of its run back so lookups never stop short
+		 * @return The value it had, or -1 if there was none
+		 */
+		int remove(long key) {
+			int mask = keys.length - 1;
+			int i = indexOf(key);
+			while (keys[i] != key) {
+				if (keys[i] == EMPTY) return -1;
+				i = (i + 1) & mask;
+			}
+			int value = values[i];
+			size--;
+			int hole = i;
+			for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+				int home = indexOf(keys[j]);
+				// move j back into the hole unless its home lies cyclically within (hole, j]
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					keys[hole] = keys[j];
+					values[hole] = values[j];
+					hole = j;
+				}
+			}
+			keys[hole] = EMPTY;
+			return value;
+		}
+
+		private void rehash(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = newKeys(capacity);
+			values = new int[capacity];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+import java.awt.Color;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares plain and compressed MessageChannels on traffic shaped like the real thing, written the way it really is:
+ * a join snapshot of a large sketch as one shared Block, then a long stream of small moves with the occasional draw,
+ * queued on an OutboundWriter in bursts and written as it batches them, one writeLines() per batch.
+ * Both directions are run: editor to server ("<clientSeq> <op>") and server to editor ("<seq> <client> <clientSeq> <op>").
+ * Reports bytes on the wire, messages per write, and CPU time spent writing and reading each way.
+ *
+ * Run with: java CompressionBenchmark [shapes] [ops] [mean burst]
+ * and vary -Dsketch.compress.threshold to see where bypassing compression pays.
+ * With 20000 shapes and 100000 ops, nearly every op is written on its own (1.01-1.05 messages per write), and a
+ * lone op is 25-45 bytes. At a threshold of 64 they all went raw and framing made them 5-7% bigger than plain;
+ * at 16 the connection's shared window deflates them to 66-73% of plain, for about 2.5 us more CPU per op each way,
+ * so the default threshold is 16. The snapshot deflates to about 29%.
+ */
+public class CompressionBenchmark {
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		double meanBurst = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+		Random random = new Random(42);
+
+		Sketch sketch = new Sketch();
+		Color[] palette = {Color.black, Color.red, Color.blue, new Color(0x336699)};
+		long[] ids = new long[shapes];
+		for (int i = 0; i < shapes; i++) {
+			int x = random.nextInt(800), y = random.nextInt(800);
+			Color c = palette[random.nextInt(palette.length)];
+			long id = Sketch.id(1 + i % 8, 1 + i / 8);	// as drawn by a handful of editors
+			switch (i % 3) {
+				case 0: sketch.add(id, new Ellipse(x, y, x + random.nextInt(100), y + random.nextInt(100), c)); break;
+				case 1: sketch.add(id, new Rectangle(x, y, x + random.nextInt(100), y + random.nextInt(100), c)); break;
+				default: sketch.add(id, new Segment(x, y, x + random.nextInt(100), y + random.nextInt(100), c)); break;
+			}
+			ids[i] = id;
+		}
+		String snapshot = sketch.toString();
+
+		List<String> sent = new ArrayList<String>(), passed = new ArrayList<String>();
+		int drawn = 0;
+		for (int i = 1; i <= count; i++) {
+			String op;
+			if (i % 100 == 0) op = "draw " + Sketch.id(9, ++drawn) + " ellipse 10 10 40 40 -16777216";
+			else op = "move " + ids[random.nextInt(shapes)] + " " + (random.nextInt(7) - 3) + " " + (random.nextInt(7) - 3);
+			sent.add(i + " " + op);
+			passed.add((shapes + i) + " 9 " + i + " " + op);
+		}
+		// how many messages come in together before the writer catches up: geometric, at least one
+		List<Integer> bursts = new ArrayList<Integer>();
+		for (int queued = 0; queued < count; ) {
+			int burst = 1;
+			while (random.nextDouble() < 1 - 1 / meanBurst) burst++;
+			bursts.add(burst);
+			queued += burst;
+		}
+
+		System.out.println("shapes=" + shapes + " ops=" + count + " mean burst=" + meanBurst + " threshold=" + MessageChannel.THRESHOLD);
+		for (int round = 0; round < 3; round++) { // the first rounds warm up the JIT
+			boolean last = round == 2;
+			run("editor plain", false, null, sent, bursts, last);
+			run("editor deflate", true, null, sent, bursts, last);
+			run("server plain", false, snapshot, passed, bursts, last);
+			run("server deflate", true, snapshot, passed, bursts, last);
+		}
+	}
+
+	private static void run(String name, boolean compress, String snapshot, List<String> msgs, List<Integer> bursts,
+			boolean print) throws Exception {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		MessageChannel channel = new MessageChannel(new ByteArrayInputStream(new byte[0]), wire);
+		if (compress) channel.enableCompression();
+
+		long snapshotCpu = threads.getCurrentThreadCpuTime();
+		if (snapshot != null) channel.writeBlock(new MessageChannel.Block(snapshot));	// as the first to join at a version
+		snapshotCpu = threads.getCurrentThreadCpuTime() - snapshotCpu;
+		long snapshotWire = channel.getWireBytesOut(), snapshotPayload = channel.getPayloadBytesOut();
+
+		OutboundWriter writer = new OutboundWriter(channel, wire);
+		writer.start();
+		int next = 0;
+		for (int burst : bursts) {
+			for (int i = 0; i < burst && next < msgs.size(); i++) writer.send(msgs.get(next++));
+			// the next burst comes once this one is written, as when the link keeps up
+			while (writer.getMessagesSent() < next) Thread.yield();
+		}
+		long writeCpu = threads.getThreadCpuTime(writer.getId());
+		double perWrite = writer.getMessagesPerWrite();
+		writer.interrupt();
+		long opsWire = channel.getWireBytesOut() - snapshotWire, opsPayload = channel.getPayloadBytesOut() - snapshotPayload;
+
+		MessageChannel reader = new MessageChannel(new ByteArrayInputStream(wire.toByteArray()), OutputStream.nullOutputStream());
+		if (compress) reader.enableCompression();
+		long readCpu = threads.getCurrentThreadCpuTime();
+		int lines = 0;
+		while (reader.readLine() != null) lines++;
+		readCpu = threads.getCurrentThreadCpuTime() - readCpu;
+
+		if (print) {
+			if (snapshot != null) {
+				System.out.printf("%-14s snapshot %,11d -> %,11d bytes (%5.1f%%) %7.1f ms%n",
+						name, snapshotPayload, snapshotWire, 100.0 * snapshotWire / snapshotPayload, snapshotCpu / 1e6);
+			}
+			System.out.printf("%-14s ops      %,11d -> %,11d bytes (%5.1f%%) %7.1f ms | %4.2f msgs/write | read %,d lines %7.1f ms%n",
+					name, opsPayload, opsWire, 100.0 * opsWire / opsPayload, writeCpu / 1e6, perWrite, lines, readCpu / 1e6);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import javax.swing.SwingUtilities;
+
+/**
+ * An editor's end of the datagram side channel for drags and previews, beside its connection to the server.
+ *
+ * While a shape is dragged, where it has got to is superseded many times a second. Sent as ops over the connection,
+ * every intermediate position has to arrive, in order, and one lost packet holds up everything behind it.
+ * Sent here instead, each update says how far the drag has gone in all (not since the last update) and carries
+ * a number that goes up with each one, so a late or lost datagram costs nothing: the next one replaces it, and
+ * anything older than what is already shown is dropped (see PredictedSketch.dragged). Only the drag's end is an op,
+ * sent over the connection like any other. Drags not heard from for EXPIRE_MILLIS are dropped, in case that op
+ * came from someone who disconnected first.
+ * Offsets from where the drag started, rather than positions, are what the move op that ends it carries, and are
+ * just as safe to apply again or out of turn; a drag is known by its first shape, and the numbers, counted across
+ * all of an editor's updates, only ever need comparing within one drag.
+ *
+ * Previews of shapes being drawn go here too (see LivePreviews), each the whole shape, numbered the same way and
+ * compared per shape.
+ *
+ * Datagrams go to the server's DragRelay, on the same port number as the connection, as
+ * "<clientId> <seq> <dx> <dy> <ids>" or "<clientId> <seq> preview <id> <shape>"; "<clientId> 0" every HELLO_MILLIS
+ * tells it where to send the others' drags and previews.
+ */
+public class DragChannel extends Thread {
+	private static final int HELLO_MILLIS = 2000;	// how often to tell the relay where we are
+	private static final int EXPIRE_MILLIS = 1000;	// how long a drag is shown without hearing from it
+
+	private volatile String serverIP;			// the relay of the server joined, which changes on failing over
+	private volatile int port;
+	private volatile boolean retargeted = false;	// the relay changed, so say hello to the new one
+	private final PredictedSketch replica;		// where drags are shown
+	private final LivePreviews previews;		// where previews are shown
+	private final Runnable changed;				// told when others' drags have changed what is shown
+	private volatile DatagramSocket socket;		// null until started
+	private long seq = 0;						// number of the last update sent
+
+	public DragChannel(String serverIP, int port, PredictedSketch replica, LivePreviews previews, Runnable changed) {
+		super("drag channel");
+		this.serverIP = serverIP;
+		this.port = port;
+		this.replica = replica;
+		this.previews = previews;
+		this.changed = changed;
+		setDaemon(true);
+	}
+
+	/**
+	 * Sends to another server's relay from now on, as when the editor has failed over to a standby
+	 */
+	public void retarget(String serverIP, int port) {
+		if (serverIP.equals(this.serverIP) && port == this.port) return;
+		this.serverIP = serverIP;
+		this.port = port;
+		DatagramSocket to = socket;
+		if (to != null) {
+			try {
+				to.disconnect();
+				to.connect(InetAddress.getByName(serverIP), port);
+			}
+			catch (IOException | java.io.UncheckedIOException e) {
+				System.err.println("drag channel can't reach " + serverIP + ": " + e.getMessage());
+			}
+		}
+		retargeted = true;
+	}
+
+	/**
+	 * Shows our drag as far as it has gone and tells everyone else; on the Swing thread
+	 * @param ids The shapes dragged, the first being the one grabbed
+	 * @param dx How far from where they were when the drag started
+	 * @param dy How far from where they were when the drag started
+	 */
+	public void drag(long[] ids, int dx, int dy) {
+		int clientId = replica.getClientId();
+		replica.dragged(clientId, ++seq, ids, dx, dy);
+		StringBuilder sb = new StringBuilder();
+		sb.append(clientId).append(' ').append(seq).append(' ').append(dx).append(' ').append(dy).append(' ');
+		for (int i = 0; i < ids.length; i++) sb.append(i > 0 ? "," : "").append(ids[i]);
+		send(sb.toString());
+	}
+
+	/**
+	 * Tells everyone else what a shape being drawn here looks like now; on the Swing thread
+	 * @param id The id it will be drawn under
+	 * @param shape The shape in its toString() form
+	 * @return Whether it was sent; false if it is too big for a datagram, or the channel isn't up yet
+	 */
+	public boolean preview(long id, String shape) {
+		return send(replica.getClientId() + " " + (++seq) + " preview " + id + " " + shape);
+	}
+
+	/**
+	 * Sends a datagram if it fits, forgetting it if not: it is only ever a preview
+	 * @return Whether it fitted and there was a socket to send it on
+	 */
+	private boolean send(String datagram) {
+		DatagramSocket to = socket;
+		byte[] bytes = datagram.getBytes(StandardCharsets.US_ASCII);
+		if (to == null || bytes.length > DragRelay.MAX_DATAGRAM) return false;
+		try {
+			to.send(new DatagramPacket(bytes, bytes.length));
+		}
+		catch (IOException e) {
+			// lost like any other datagram
+		}
+		return true;
+	}
+
+	/**
+	 * Listens for others' drags and previews, saying hello and dropping stale drags in between
+	 */
+	public void run() {
+		try {
+			DatagramSocket socket = new DatagramSocket();
+			socket.connect(InetAddress.getByName(serverIP), port);
+			socket.setSoTimeout(HELLO_MILLIS / 4);
+			this.socket = socket;
+		}
+		catch (IOException e) {
+			System.err.println("no drag channel: " + e.getMessage());
+			return;
+		}
+		byte[] buf = new byte[DragRelay.MAX_DATAGRAM];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		OpTokenizer datagram = new OpTokenizer();
+		long hello = 0;			// when we last said hello
+		int helloId = -1;		// who as
+		while (true) {
+			int clientId = replica.getClientId();
+			if (retargeted) {
+				retargeted = false;
+				helloId = -1;
+			}
+			if (clientId >= 0 && (clientId != helloId || System.nanoTime() - hello > HELLO_MILLIS * 1000000L)) {
+				send(clientId + " 0");
+				hello = System.nanoTime();
+				helloId = clientId;
+			}
+			boolean moved = false;
+			try {
+				packet.setLength(buf.length);
+				socket.receive(packet);
+				datagram.reset(buf, 0, packet.getLength());
+				int from = datagram.nextInt();
+				long seq = datagram.nextLong();
+				if (datagram.atWord()) {
+					datagram.skip();
+					long id = datagram.nextLong();
+					Shape shape = Sketch.parseShape(datagram);
+					if (seq > 0 && from != clientId) SwingUtilities.invokeLater(() -> previews.heard(from, seq, id, shape));
+				}
+				else {
+					int dx = datagram.nextInt(), dy = datagram.nextInt();
+					datagram.nextIds();
+					if (seq > 0 && from != clientId) {
+						moved = replica.dragged(from, seq, datagram.copyIds(), dx, dy);
+					}
+				}
+			}
+			catch (SocketTimeoutException e) {
+				// nothing heard; time to check on hello and expiry
+			}
+			catch (IOException e) {
+				// e.g. the relay isn't running; keep on, the connection is what matters
+			}
+			catch (RuntimeException e) {
+				// malformed; ignore
+			}
+			if (replica.expireDrags(EXPIRE_MILLIS * 1000000L)) moved = true;
+			if (moved) changed.run();
+		}
+	}
+}
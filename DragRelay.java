@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server's end of the datagram side channel for drags and previews (see DragChannel): passes each editor's
+ * updates on to every other editor, as they come, without sequencing, applying or keeping them.
+ *
+ * Datagrams are "<clientId> <seq> <dx> <dy> <ids>" or "<clientId> <seq> preview <id> <shape>", or just
+ * "<clientId> 0" to say where the editor listens.
+ * An editor is known by the address its datagrams come from, once that is seen to be the host its connection
+ * (with that client id) comes from; anything else is dropped. Editors are forgotten when their connection goes.
+ */
+public class DragRelay extends Thread {
+	public static final int MAX_DATAGRAM = 1400;		// bytes at most, to fit in one packet
+
+	private final DatagramSocket socket;
+	private final SketchServer server;
+	private final ConcurrentHashMap<Integer, SocketAddress> editors = new ConcurrentHashMap<Integer, SocketAddress>();	// by client id
+	private final LongAdder relayed = new LongAdder(), rejected = new LongAdder();
+
+	/**
+	 * @param port The UDP port to listen on; the server uses the same number as for TCP, or 0 for any free one
+	 */
+	public DragRelay(int port, SketchServer server) throws IOException {
+		super("drag relay");
+		this.socket = new DatagramSocket(port);
+		this.server = server;
+		setDaemon(true);
+	}
+
+	public void run() {
+		byte[] buf = new byte[MAX_DATAGRAM];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		OpTokenizer datagram = new OpTokenizer();
+		while (!socket.isClosed()) {
+			try {
+				packet.setLength(buf.length);
+				socket.receive(packet);
+				datagram.reset(buf, 0, packet.getLength());
+				int clientId = datagram.nextInt();
+				long seq = datagram.nextLong();
+				SocketAddress from = packet.getSocketAddress();
+				if (!from.equals(editors.get(clientId)) && !admit(clientId, packet.getAddress(), from)) {
+					rejected.increment();
+					continue;
+				}
+				if (seq == 0) continue;
+				for (java.util.Map.Entry<Integer, SocketAddress> editor : editors.entrySet()) {
+					if (editor.getKey() == clientId) continue;
+					socket.send(new DatagramPacket(buf, packet.getLength(), editor.getValue()));
+					relayed.increment();
+				}
+			}
+			catch (IOException e) {
+				if (!socket.isClosed()) System.err.println("drag relay: " + e.getMessage());
+			}
+			catch (RuntimeException e) {
+				rejected.increment();	// malformed
+			}
+		}
+	}
+
+	/**
+	 * Takes a datagram's address as where an editor listens, if the editor's connection comes from that host
+	 */
+	private boolean admit(int clientId, InetAddress host, SocketAddress from) {
+		for (SketchServerCommunicator comm : server.getCommunicators()) {
+			if (comm.getClientId() == clientId && host.equals(comm.getRemoteAddress())) {
+				editors.put(clientId, from);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops passing drags to and from an editor whose connection has gone
+	 */
+	public void forget(int clientId) {
+		editors.remove(clientId);
+	}
+
+	/**
+	 * The UDP port listened on
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public long getRelayed() {
+		return relayed.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
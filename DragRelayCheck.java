@@ -0,0 +1,137 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks the datagram side channel for drags over loopback: a SketchServer with its DragRelay on free ports,
+ * two editors joined to it, each with a DragChannel and a replica showing the same two shapes.
+ *
+ * It checks that a drag made through one channel shows at the other, that an update numbered lower than one
+ * already shown (late or out of order) and one numbered the same are dropped there, and that datagrams from a
+ * client id with no connection from that host are rejected by the relay and reach no one.
+ * A later update of another drag is used as a marker: once it shows, anything sent before it has been handled.
+ * Runs headless, the replicas and channels being those an Editor would make, without the window.
+ * Each check is printed as it passes; the first to fail is printed and the exit status is 1.
+ *
+ * Run with: java DragRelayCheck
+ */
+public class DragRelayCheck {
+	private static final int WAIT_MILLIS = 5000;	// for anything to arrive, at most
+
+	private static final long S = 1, T = 2;		// the shapes dragged, as drawn by an older client
+
+	private static void check(boolean ok, String what) {
+		if (!ok) throw new IllegalStateException("FAILED: " + what);
+		System.out.println("ok: " + what);
+	}
+
+	private static boolean await(BooleanSupplier condition) throws InterruptedException {
+		long until = System.currentTimeMillis() + WAIT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > until) return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Joins the server as an editor, returning its client id; the connection is left open so the relay admits it
+	 */
+	private static int join(int port) throws Exception {
+		Socket sock = new Socket("localhost", port);
+		MessageChannel channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+		channel.writeLine("hello plain");
+		return Integer.parseInt(channel.readLine().split(" ")[2]);
+	}
+
+	/**
+	 * A replica as an editor with the given id would have it, showing S and T
+	 */
+	private static PredictedSketch replica(int clientId) {
+		PredictedSketch replica = new PredictedSketch();
+		replica.joined(clientId, 0);
+		replica.snapshot(new OpTokenizer().reset("draw " + S + " rectangle 0 0 10 10 0"));
+		replica.snapshot(new OpTokenizer().reset("draw " + T + " rectangle 100 100 110 110 0"));
+		return replica;
+	}
+
+	private static int x(PredictedSketch replica, long id) {
+		return replica.getShown().getShapeById(id).getBounds().x;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ServerSocket listen = new ServerSocket(0);
+		SketchServer server = new SketchServer(listen);
+		int port = listen.getLocalPort();
+		server.startDragRelay(0);
+		DragRelay relay = server.getDragRelay();
+		Thread accepting = new Thread(() -> {
+			try {
+				server.getConnections();
+			}
+			catch (java.io.IOException e) {
+				// done
+			}
+		});
+		accepting.setDaemon(true);
+		accepting.start();
+
+		int status = 0;
+		try {
+			int a = join(port), b = join(port);
+			PredictedSketch atA = replica(a), atB = replica(b);
+			DragChannel fromA = new DragChannel("localhost", relay.getPort(), atA, new LivePreviews(), () -> {});
+			DragChannel fromB = new DragChannel("localhost", relay.getPort(), atB, new LivePreviews(), () -> {});
+			fromA.start();
+			fromB.start();
+			check(a != b, "editors " + a + " and " + b + " joined, relay on port " + relay.getPort());
+
+			// a drag through one channel shows at the other; until B has said hello, the relay doesn't know where it is
+			check(await(() -> {
+				fromA.drag(new long[] {S}, 3, 4);
+				return x(atB, S) == 3;
+			}), "A's drag shows at B");
+			check(x(atA, S) == 3, "A's drag shows at A");
+
+			// updates as A's, numbered by hand, from a socket on A's host, which the relay takes as A's new address
+			try (DatagramSocket raw = new DatagramSocket()) {
+				raw.connect(InetAddress.getByName("localhost"), relay.getPort());
+				java.util.function.Consumer<String> send = datagram -> {
+					byte[] bytes = datagram.getBytes(StandardCharsets.US_ASCII);
+					try {
+						raw.send(new DatagramPacket(bytes, bytes.length));
+					}
+					catch (java.io.IOException e) {
+						throw new IllegalStateException("FAILED: sending " + datagram);
+					}
+				};
+				send.accept(a + " 1000 5 0 " + S);
+				check(await(() -> x(atB, S) == 5), "a newer update replaces the drag shown");
+				send.accept(a + " 999 50 0 " + S);		// late
+				send.accept(a + " 1000 60 0 " + S);		// the same number again
+				send.accept(a + " 1001 7 0 " + T);		// the marker
+				check(await(() -> x(atB, T) == 107), "marker arrived");
+				check(x(atB, S) == 5, "late and repeated updates are dropped");
+				send.accept(a + " 1002 9 0 " + S);
+				check(await(() -> x(atB, S) == 9), "a later update still shows");
+
+				// a client id with no connection is not admitted, and nothing it sends is passed on
+				long rejected = relay.getRejected(), relayed = relay.getRelayed();
+				send.accept("99 2000 40 0 " + T);
+				check(await(() -> relay.getRejected() == rejected + 1), "datagrams as an unknown client are rejected");
+				check(relay.getRelayed() == relayed && x(atB, T) == 107, "and not passed on");
+			}
+			System.out.println("drag relay ok");
+		}
+		catch (IllegalStateException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		}
+		relay.close();
+		System.exit(status);
+	}
+}
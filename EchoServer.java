@@ -2,18 +2,28 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.File;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * EchoServer is a simple server which accepts a connection and 
  * simply reads input and echos it back to the sender.
  * Code provided to enable testing of (1) sending/receiving messages from
  * the server, and (2) updating a sketch based on messages.
+ *
+ * Given an upstream server and a trace file, it is instead a capture proxy:
+ * each editor's connection is passed through to the server, and every message either way
+ * is recorded with its time into the trace (see TraceWriter), for TraceReplayer to re-drive later.
  */
 public class EchoServer {
 
     private ServerSocket listen;  // ServerSocket for accepting connections
+    private String upstreamHost;  // server to pass connections through to, or null to echo
+    private int upstreamPort;
+    private TraceWriter trace;    // where proxied traffic is recorded
+    private final AtomicInteger connections = new AtomicInteger();  // numbers the proxied connections
 
     /**
      * Constructs an EchoServer with the given ServerSocket.
@@ -23,6 +33,20 @@ public class EchoServer {
         this.listen = listen;
     }
 
+    /**
+     * Constructs a capture proxy in front of the given server.
+     * @param listen The ServerSocket for accepting connections
+     * @param upstreamHost The server's host
+     * @param upstreamPort The server's port
+     * @param trace Where to record the traffic
+     */
+    public EchoServer(ServerSocket listen, String upstreamHost, int upstreamPort, TraceWriter trace) {
+        this.listen = listen;
+        this.upstreamHost = upstreamHost;
+        this.upstreamPort = upstreamPort;
+        this.trace = trace;
+    }
+
     /**
      * Inner class representing a communicator thread for handling communication with a client.
      */
@@ -78,6 +102,97 @@ public class EchoServer {
         }
     }
 
+    /**
+     * Inner class passing one editor's connection through to the upstream server, recording as it goes.
+     * Messages are read and written through MessageChannels, so compressed connections are recorded as plain lines;
+     * each leg negotiates compression for itself by passing the handshake lines along.
+     */
+    private class ProxyCommunicator extends Thread {
+        private Socket sock;             // Socket for communication with the editor
+        private int connection;          // number of this connection in the trace
+
+        public ProxyCommunicator(Socket sock, int connection) {
+            this.sock = sock;
+            this.connection = connection;
+        }
+
+        /**
+         * Run method for the communicator thread.
+         * Connects upstream, relays the handshake, then copies messages both ways until either side hangs up.
+         */
+        public void run() {
+            try (Socket upstream = new Socket(upstreamHost, upstreamPort)) {
+                System.out.println("Editor connected, passing through as connection " + connection);
+                MessageChannel client = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+                MessageChannel server = new MessageChannel(upstream.getInputStream(), upstream.getOutputStream());
+                trace.write(connection, TraceWriter.CONNECT, "");
+
+                // Handshake: hello one way, welcome the other, then both legs switch together
+                String hello = client.readLine();
+                if (hello == null) return;
+                relay(server, TraceWriter.TO_SERVER, hello);
+                String welcome = server.readLine();
+                if (welcome == null) return;
+                relay(client, TraceWriter.TO_CLIENT, welcome);
+                if (welcome.startsWith("welcome deflate")) {
+                    client.enableCompression();
+                    server.enableCompression();
+                }
+
+                // Server to editor on a helper thread, editor to server on this one
+                Thread down = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = server.readLine()) != null) {
+                            relay(client, TraceWriter.TO_CLIENT, line);
+                        }
+                    }
+                    catch (IOException e) {
+                        // either side hung up
+                    }
+                    finally {
+                        close(sock);
+                    }
+                });
+                down.setDaemon(true);
+                down.start();
+                String line;
+                while ((line = client.readLine()) != null) {
+                    relay(server, TraceWriter.TO_SERVER, line);
+                }
+            }
+            catch (IOException e) {
+                System.err.println("connection " + connection + ": " + e.getMessage());
+            }
+            finally {
+                close(sock);
+                try {
+                    trace.write(connection, TraceWriter.CLOSE, "");
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Records a message, then passes it on
+         */
+        private void relay(MessageChannel to, int kind, String line) throws IOException {
+            trace.write(connection, kind, line);
+            to.writeLine(line);
+        }
+
+        private void close(Socket s) {
+            try {
+                s.close();
+            }
+            catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
     /**
      * Accepts connections and starts communicator threads for handling each connection.
      * Continuously listens for new connections.
@@ -86,7 +201,9 @@ public class EchoServer {
     public void getConnections() throws IOException {
         while (true) {
             // Accept a connection and start a new communicator thread to handle it
-            EchoServerCommunicator comm = new EchoServerCommunicator(listen.accept());
+            Socket sock = listen.accept();
+            Thread comm = trace == null ? new EchoServerCommunicator(sock)
+                    : new ProxyCommunicator(sock, connections.incrementAndGet());
             comm.setDaemon(true);  // Set the thread as a daemon thread
             comm.start();          // Start the communicator thread
         }
@@ -94,11 +211,29 @@ public class EchoServer {
 
     /**
      * Main method to start the EchoServer.
-     * @param args Command line arguments (not used)
+     * With no arguments it echoes on port 4242; with "port upstreamHost upstreamPort trace"
+     * it records everything passing between editors on port and the server at upstreamHost:upstreamPort.
+     * @param args Command line arguments, as above
      * @throws Exception if an error occurs
      */
     public static void main(String[] args) throws Exception {
-        System.out.println("Starting up the EchoServer...");
-        new EchoServer(new ServerSocket(4242)).getConnections();
+        if (args.length == 4) {
+            System.out.println("Starting up the capture proxy, recording to " + args[3] + "...");
+            TraceWriter trace = new TraceWriter(new File(args[3]));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            new EchoServer(new ServerSocket(Integer.parseInt(args[0])), args[1], Integer.parseInt(args[2]), trace)
+                    .getConnections();
+        }
+        else {
+            System.out.println("Starting up the EchoServer...");
+            new EchoServer(new ServerSocket(4242)).getConnections();
+        }
     }
 }
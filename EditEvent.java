@@ -0,0 +1,60 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for each stage an edit goes through, so a recording
+ * (e.g. java -XX:StartFlightRecording=filename=edit.jfr SketchServer) shows where an edit's time goes.
+ * Every event carries the op type and shape id, which is how the stages of one edit are lined up,
+ * including across the server's and an editor's recordings.
+ * When recording is off, begin/commit are no-ops that the JIT removes.
+ */
+@Category("Sketch")
+public abstract class EditEvent extends Event {
+	@Label("Op Type")
+	public String opType;
+
+	@Label("Shape Id")
+	public long shapeId = -1;
+
+	/**
+	 * Fills in the edit's identity; returns the event for chaining before commit()
+	 */
+	public EditEvent of(String opType, long shapeId) {
+		this.opType = opType;
+		this.shapeId = shapeId;
+		return this;
+	}
+
+	@Name("sketch.Receive")
+	@Label("Receive")
+	@Description("Server handling one message read in SketchServerCommunicator.run")
+	public static class Receive extends EditEvent {
+	}
+
+	@Name("sketch.Apply")
+	@Label("Apply")
+	@Description("Server applying one op to its Sketch")
+	public static class Apply extends EditEvent {
+	}
+
+	@Name("sketch.Broadcast")
+	@Label("Broadcast")
+	@Description("Server sending one op to every client")
+	public static class Broadcast extends EditEvent {
+	}
+
+	@Name("sketch.Parse")
+	@Label("Parse")
+	@Description("Editor decoding and applying one message from the server")
+	public static class Parse extends EditEvent {
+	}
+
+	@Name("sketch.Repaint")
+	@Label("Repaint")
+	@Description("Editor painting the sketch, tagged with the most recent op it shows")
+	public static class Repaint extends EditEvent {
+	}
+}
@@ -2,7 +2,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.Map;
 import java.util.Objects;
 import javax.swing.*;
 
@@ -18,6 +17,7 @@ public class Editor extends JFrame {
 	private static String serverIP = "localhost"; // IP address of sketch server
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
+	private static String servers = System.getProperty("sketch.servers", serverIP); // "<host>[:<port>]", or a leader and its standbys in order, comma-separated
 
 	private static final int width = 800, height = 800; // canvas size
 
@@ -33,23 +33,30 @@ public class Editor extends JFrame {
 	// Drawing state
 	// these are remnants of my implementation; take them as possible suggestions or ignore them
 	private Shape curr = null; // current shape (if any) being drawn
-	private Sketch sketch = new Sketch(); // holds and handles all the completed objects
-	private int movingId = -1; // current shape id (if any; else -1) being moved
+	private PredictedSketch replica = new PredictedSketch(); // holds and handles all the completed objects
+	private long movingId = -1; // current shape id (if any; else -1) being moved
+	private long currId = -1; // the id curr will be drawn under, which its preview goes by
+	private final LivePreviews previews = new LivePreviews(); // curr as it grows, out to others, and theirs in to us
 	private Point drawFrom = null; // where the drawing started
 	private Point moveFrom = null; // where object is as it's being dragged
+	private String dragTargets = null; // with a drag channel, the shapes being dragged, moved by one op when let go
+	private Point dragFrom = null; // with a drag channel, where the drag started
+	private Point bandFrom = null, bandTo = null; // corners of the rubber band being dragged out, if any
+	private List<Long> selected = new ArrayList<>(); // shapes picked with the rubber band, acted on together
+	private volatile String lastOp = null; // most recent op received from the server, for tracing repaints
+	private volatile long lastId = -1; // shape id of that op
+	private double zoom = 1.0; // screen pixels per sketch unit, changed with the mouse wheel
+	private final LevelOfDetail lod = new LevelOfDetail(); // draws the sketch zoomed out
 
 	// Communication
 	private EditorCommunicator comm; // communication with the sketch server
+	private JComponent canvas; // where the sketch is drawn
 
 	public Editor() {
 		super("Graphical Editor");
 
-		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
-		comm.start();
-
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -63,6 +70,18 @@ public class Editor extends JFrame {
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		pack();
 		setVisible(true);
+
+		// Connect to server, in the background; drawing can start before it's done
+		comm = new EditorCommunicator(servers, this);
+		comm.start();
+	}
+
+	/**
+	 * Shows the state of the connection to the server in the title; may be called from any thread
+	 * @param status E.g. "reconnecting", or null once connected
+	 */
+	public void connectionChanged(String status) {
+		SwingUtilities.invokeLater(() -> setTitle(status == null ? "Graphical Editor" : "Graphical Editor (" + status + ")"));
 	}
 
 	/**
@@ -80,7 +99,7 @@ public class Editor extends JFrame {
 
 		canvas.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent event) {
-				handlePress(event.getPoint());
+				handlePress(toSketch(event.getPoint()));
 			}
 
 			public void mouseReleased(MouseEvent event) {
@@ -90,10 +109,15 @@ public class Editor extends JFrame {
 
 		canvas.addMouseMotionListener(new MouseAdapter() {
 			public void mouseDragged(MouseEvent event) {
-				handleDrag(event.getPoint());
+				handleDrag(toSketch(event.getPoint()));
 			}
 		});
 
+		canvas.addMouseWheelListener(event -> {
+			zoom = Math.max(1.0 / 64, Math.min(8, zoom * Math.pow(1.25, -event.getPreciseWheelRotation())));
+			repaint();
+		});
+
 		return canvas;
 	}
 
@@ -144,6 +168,10 @@ public class Editor extends JFrame {
 		modesP.add(recolorB);
 		modesP.add(deleteB);
 
+		// Show crowded areas zoomed out as density rather than dots
+		JCheckBox heatmapB = new JCheckBox("heatmap");
+		heatmapB.addActionListener(e -> { lod.setHeatmap(heatmapB.isSelected()); repaint(); });
+
 		// Put all the stuff into a panel
 		JComponent gui = new JPanel();
 		gui.setLayout(new FlowLayout());
@@ -151,14 +179,56 @@ public class Editor extends JFrame {
 		gui.add(chooseColorB);
 		gui.add(colorL);
 		gui.add(modesP);
+		gui.add(heatmapB);
 		return gui;
 	}
 
 	/**
-	 * Getter for the sketch instance variable
+	 * Getter for the sketch as shown: the server's state plus this editor's own ops not yet confirmed
 	 */
 	public Sketch getSketch() {
-		return sketch;
+		return replica.getShown();
+	}
+
+	/**
+	 * Getter for the replica instance variable
+	 */
+	public PredictedSketch getReplica() {
+		return replica;
+	}
+
+	/**
+	 * Shapes being drawn, here and by others
+	 */
+	public LivePreviews getPreviews() {
+		return previews;
+	}
+
+	/**
+	 * Notes the most recent op shown by this editor, so the next repaint can be tied to it
+	 * @param op The op type
+	 * @param id The id of the shape it touched
+	 */
+	public void showed(String op, long id) {
+		lastOp = op;
+		lastId = id;
+	}
+
+	/**
+	 * Repaints the part of the canvas showing an area of the sketch
+	 * @param area The area, in sketch coordinates, or null for all of it
+	 */
+	public void repaintSketch(java.awt.Rectangle area) {
+		if (area == null) {
+			canvas.repaint();
+			return;
+		}
+		// with room for the selection outline, and out to whole pixels plus one for strokes and for dots when zoomed out
+		area = new java.awt.Rectangle(area);
+		area.grow(3, 3);
+		int x = (int) Math.floor(area.x * zoom) - 1, y = (int) Math.floor(area.y * zoom) - 1;
+		canvas.repaint(x, y, (int) Math.ceil((area.x + area.width) * zoom) + 2 - x,
+				(int) Math.ceil((area.y + area.height) * zoom) + 2 - y);
 	}
 
 	/**
@@ -166,67 +236,107 @@ public class Editor extends JFrame {
 	 * along with the object currently being drawn in this editor (not yet part of the sketch)
 	 */
 	public void drawSketch(Graphics g) {
-		for(Map.Entry<Integer, Shape> entry: sketch.getMap().entrySet()) {
-			Shape shape = entry.getValue();
+		EditEvent repaint = new EditEvent.Repaint();
+		repaint.begin();
+		lod.draw(g, getSketch(), zoom);
+		Graphics2D g2 = (Graphics2D) g.create();
+		g2.scale(zoom, zoom);
+		previews.draw(g2);
+		if (curr != null) {
+			curr.draw(g2);
+		}
+		g2.setColor(Color.gray);
+		g2.setStroke(new BasicStroke((float) (1 / zoom), BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+				new float[] {(float) (4 / zoom)}, 0));
+		for (long id : selected) {
+			Shape shape = getSketch().getShapeById(id);
 			if (shape != null) {
-				shape.draw(g);
-				System.out.println("Drawing shape with ID: " + entry.getKey());
+				java.awt.Rectangle bounds = shape.getBounds();
+				g2.drawRect(bounds.x - 2, bounds.y - 2, bounds.width + 3, bounds.height + 3);
 			}
 		}
-		if (curr != null) {
-			curr.draw(g);
-			System.out.println("Drawing current shape");
+		if (bandFrom != null) {
+			g2.draw(band());
 		}
+		g2.dispose();
+		repaint.of(lastOp, lastId).commit();
 	}
 
 	// Helpers for event handlers
 
+	/**
+	 * Converts a point on the canvas to sketch coordinates, undoing the zoom
+	 */
+	private Point toSketch(Point p) {
+		return new Point((int) Math.floor(p.x / zoom), (int) Math.floor(p.y / zoom));
+	}
+
+	/**
+	 * The rubber band as a rectangle, whichever way it was dragged
+	 */
+	private java.awt.Rectangle band() {
+		java.awt.Rectangle band = new java.awt.Rectangle(bandFrom);
+		band.add(bandTo);
+		return band;
+	}
+
+	/**
+	 * The ids an op on the given shape applies to: the whole selection if the shape is in it, else just the shape
+	 */
+	private String targets(long id) {
+		return selected.contains(id) ? Sketch.idList(selected) : Long.toString(id);
+	}
+
 	/**
 	 * Helper method for press at point
 	 * In drawing mode, start a new object;
 	 * in moving mode, (request to) start dragging if clicked in a shape;
 	 * in recoloring mode, (request to) change clicked shape's color
-	 * in deleting mode, (request to) delete clicked shape
+	 * in deleting mode, (request to) delete clicked shape;
+	 * a press on a selected shape acts on the whole selection, and one off every shape starts a rubber band.
+	 * Requests take effect on the sketch straight away and are confirmed when the server passes them back.
 	 */
 	private void handlePress(Point p) {
-		System.out.println("Handling press at: " + p);
 		if (mode == Mode.DRAW) {
 			drawFrom = p;
 			switch (shapeType) {
 				case "ellipse":
 					curr = new Ellipse(p.x, p.y, color);
-					System.out.println("Creating ellipse");
 					break;
 				case "rectangle":
 					curr = new Rectangle(p.x, p.y, color);
-					System.out.println("Creating rectangle");
 					break;
 				case "freehand":
 					curr = new Polyline(p.x, p.y, color);
-					System.out.println("Creating polyline");
 					break;
 				case "segment":
 					curr = new Segment(p.x, p.y, color);
-					System.out.println("Creating segment");
 					break;
 			}
+			currId = replica.newShapeId();
+			previews.start(currId, curr);
 		} else {
-			int id = sketch.contains(p.x, p.y);
+			long id = getSketch().contains(p.x, p.y);
 			if (id != -1) {
-				movingId = id;
-				curr = sketch.getShapeById(id);
+				if (!selected.contains(id)) {
+					selected = new ArrayList<>();
+				}
 				if (mode == Mode.MOVE) {
+					movingId = id;
 					moveFrom = p;
-					System.out.println("Starting move of shape with ID: " + id);
+					if (comm.getDragChannel() != null) {
+						dragTargets = targets(id);
+						dragFrom = p;
+					}
 				} else if (mode == Mode.RECOLOR) {
-					curr.setColor(color);
-					comm.send("Recolor " + id + " " + color.getRGB());
-					System.out.println("Recoloring shape with ID: " + id);
+					comm.sendOp("recolor " + targets(id) + " " + color.getRGB());
 				} else if (mode == Mode.DELETE) {
-					sketch.remove(id);
-					comm.send("Delete " + id);
-					System.out.println("Deleting shape with ID: " + id);
+					comm.sendOp("delete " + targets(id));
+					selected = new ArrayList<>();
 				}
+			} else {
+				bandFrom = p;
+				bandTo = p;
 			}
 		}
 		repaint();
@@ -234,11 +344,10 @@ public class Editor extends JFrame {
 
 	/**
 	 * Helper method for drag to new point
-	 * In drawing mode, update the other corner of the object;
-	 * in moving mode, (request to) drag the object
+	 * In drawing mode, update the other corner of the object, which others see at the preview rate;
+	 * in moving mode, (request to) drag the object, or with a drag channel just show the drag so far
 	 */
 	private void handleDrag(Point p) {
-		System.out.println("Handling drag to: " + p);
 		if (mode == Mode.DRAW && curr != null) {
 			switch (shapeType) {
 				case "ellipse":
@@ -255,10 +364,16 @@ public class Editor extends JFrame {
 					((Segment) curr).setEnd(p.x, p.y);
 					break;
 			}
+			previews.changed(curr);
+		} else if (bandFrom != null) {
+			bandTo = p;
+		} else if (mode == Mode.MOVE && dragTargets != null) {
+			// previewed over the drag channel until let go
+			comm.getDragChannel().drag(Sketch.ids(dragTargets), p.x - dragFrom.x, p.y - dragFrom.y);
+			moveFrom = p;
 		} else if (mode == Mode.MOVE && movingId != -1) {
-			curr.moveBy(p.x - moveFrom.x, p.y - moveFrom.y);
+			comm.sendOp("move " + targets(movingId) + " " + (p.x - moveFrom.x) + " " + (p.y - moveFrom.y));
 			moveFrom = p;
-			comm.send("Move " + movingId + " " + (p.x - moveFrom.x) + " " + (p.y - moveFrom.y));
 		}
 		repaint();
 	}
@@ -266,20 +381,33 @@ public class Editor extends JFrame {
 	/**
 	 * Helper method for release
 	 * In drawing mode, pass the add new object request on to the server;
-	 * in moving mode, release it
+	 * in moving mode, release it, a drag shown over a drag channel becoming one move;
+	 * when dragging out a rubber band, select the shapes wholly inside it
 	 */
 	private void handleRelease() {
-		System.out.println("Handling release");
 		if (mode == Mode.DRAW && curr != null) {
-			sketch.add(curr);
-			comm.send("Draw " + curr.toString());
-			System.out.println("Adding new shape to sketch");
-			temp_segment.clear();
+			previews.end();
+			comm.sendOp("draw " + currId + " " + curr.toString());
+			curr = null;
+			temp_segment = new ArrayList<>();
+		}
+		if (bandFrom != null) {
+			selected = getSketch().within(band());
+			bandFrom = null;
+			bandTo = null;
+		}
+		if (mode == Mode.MOVE && dragTargets != null) {
+			long[] ids = Sketch.ids(dragTargets);
+			replica.dropDrag(ids[0]);
+			if (moveFrom.x != dragFrom.x || moveFrom.y != dragFrom.y) {
+				comm.sendOp("move " + dragTargets + " " + (moveFrom.x - dragFrom.x) + " " + (moveFrom.y - dragFrom.y));
+			}
+			dragTargets = null;
+			dragFrom = null;
 		}
 		if (mode == Mode.MOVE) {
 			moveFrom = null;
 			movingId = -1;
-			System.out.println("Released moving shape");
 		}
 		repaint();
 	}
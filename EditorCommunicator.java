@@ -1,134 +1,391 @@
 import java.awt.*;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Handles communication to/from the server for the editor
  * This class establishes a connection to a server and sends/receives messages.
  * It also contains methods to decode and handle incoming messages.
+ *
+ * Messages from the server are not applied on the network thread: it only adds them to a lock-free queue.
+ * While there is anything queued, a Swing timer runs at the display's frame rate, and each tick applies
+ * everything that arrived since the last one and asks for one repaint of the area all of it touched,
+ * so a flood of ops costs a repaint per frame rather than per op. The timer stops when the queue runs dry.
+ *
+ * Connecting happens on this thread too, and when the connection fails or drops it tries again, waiting
+ * a random time between half and all of a backoff that doubles from BACKOFF_MIN up to BACKOFF_MAX, so that
+ * editors cut off together don't all come back at the same moment. Reconnecting to the same server run,
+ * it asks to resume: the server then sends only the ops after the last one the editor has, and says which of
+ * the editor's own ops it had handled, so the rest of those still pending are sent again. If the server can't
+ * resume (it restarted, or too much has happened since), the editor joins afresh and reloads the snapshot,
+ * dropping whatever it did while disconnected.
+ *
+ * The editor may be given several servers, in order: a leader and its standbys (see Follower). It tries the one
+ * it lost again first; one it can't join, it passes over for the next straight away, round the list, and backs off
+ * only once it has tried them all. A standby that has taken over has the leader's board, seq and epoch, so the
+ * editor resumes on it as on the leader. A server that doesn't say welcome within CONNECT_MILLIS (e.g. a standby
+ * still following a leader that is only slow) counts as one that can't be joined.
  */
 public class EditorCommunicator extends Thread {
-	private static PrintWriter out;        // to server
-	private BufferedReader in;             // from server
+	private static final boolean COMPRESS = !Boolean.getBoolean("sketch.compress.disable");	// ask the server for deflate
+
+	private static final boolean UDP = Boolean.getBoolean("sketch.udp");	// preview drags and shapes being drawn over datagrams
+	private static final long BACKOFF_MIN = 250, BACKOFF_MAX = 30000;	// ms to wait before reconnecting, before jitter
+	private static final int CONNECT_MILLIS = Integer.getInteger("sketch.connect.timeout", 10000);	// for connecting and the welcome
+	public static final int PORT = 4242;	// the server's port when not given
+
+	private static volatile OutboundWriter outbound; // writes to the server off the Swing thread; null while not joined
+	private volatile OutboundWriter joining;        // the new connection's writer, installed once the Swing thread has seen its welcome
+	private String epoch;                  // the server run we last joined, which resuming depends on
+	private final String[] servers;        // where the servers are, "<host>[:<port>]", in the order to try them
+	private final DragChannel drags;       // drag updates and previews to and from others, or null if they go over the connection
+	private final OpTokenizer tokens = new OpTokenizer(); // each message from the server, read in place on the Swing thread
+	private final ConcurrentLinkedQueue<byte[]> inbound = new ConcurrentLinkedQueue<byte[]>(); // lines received, not yet applied
+	private final AtomicBoolean draining = new AtomicBoolean(false); // whether the frame timer is running
+	private final Timer frames; // drains inbound once per frame while there is anything in it
 	protected Editor editor;               // handling communication for
 
 	/**
-	 * Establishes connection and in/out pair
-	 * @param serverIP The IP address of the server to connect to
+	 * Sets up the communicator; nothing is connected until the thread is started, so the editor comes up at once
+	 * @param servers The server to connect to as "<host>[:<port>]", or several separated by commas,
+	 * tried in order whenever the connection is lost
 	 * @param editor The editor object associated with this communicator
 	 */
-	public EditorCommunicator(String serverIP, Editor editor) {
+	public EditorCommunicator(String servers, Editor editor) {
+		super("editor communicator");
+		this.servers = servers.split(",");
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
-		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+		setDaemon(true);
+		frames = new Timer(frameMillis(), e -> drain());
+		frames.setInitialDelay(0);
+		drags = UDP ? new DragChannel(host(this.servers[0]), port(this.servers[0]), editor.getReplica(), editor.getPreviews(),
+				() -> editor.repaintSketch(null)) : null;
+		if (drags != null) {
+			editor.getPreviews().useDatagrams(drags, editor::repaintSketch);
+			drags.start();
 		}
-		catch (IOException e) {
-			System.err.println("couldn't connect");
-			System.exit(-1);
+	}
+
+	private static String host(String server) {
+		int colon = server.lastIndexOf(':');
+		return colon < 0 ? server : server.substring(0, colon);
+	}
+
+	private static int port(String server) {
+		int colon = server.lastIndexOf(':');
+		return colon < 0 ? PORT : Integer.parseInt(server.substring(colon + 1));
+	}
+
+	/**
+	 * The datagram channel for drags, or null if drags are sent as ops
+	 */
+	public DragChannel getDragChannel() {
+		return drags;
+	}
+
+	/**
+	 * The display's frame time, or a 60Hz one if it can't say
+	 */
+	private static int frameMillis() {
+		int hz = 0;
+		if (!GraphicsEnvironment.isHeadless()) {
+			hz = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
 		}
+		return 1000 / (hz > 0 ? hz : 60);
 	}
 
 	/**
-	 * Sends message to the server
+	 * Sends message to the server; it is queued, and written by the outbound writer
 	 * @param msg The message to be sent
 	 */
 	public static void send(String msg) {
-		out.println(msg);
+		OutboundWriter writer = outbound;
+		if (writer != null) writer.send(msg);
+	}
+
+	/**
+	 * Applies an op to the editor's sketch right away and sends it to the server, tagged with its client sequence number
+	 * @param op The op, e.g. "move 3 1 -2"
+	 */
+	public void sendOp(String op) {
+		PredictedSketch replica = editor.getReplica();
+		// locked with the replica so that resuming sees each op either as still pending or as already sent
+		synchronized (replica) {
+			send(replica.local(op));
+		}
 	}
 
 	/**
 	 * Decodes and handles messages from the server
-	 * @param msg The message received from the server
+	 * @param msg The message received from the server, ready to read from the start
+	 * @return The area of the sketch the message changed, null if none
 	 */
-	public void decoder(String msg)
+	public java.awt.Rectangle decoder(OpTokenizer msg)
 	{
-		String[] message = msg.split(":");
+		java.awt.Rectangle dirty = null;
 		// method format
-		// add : ellipse
-		if (message.length >= 2) {
-			if (message[0].equals("recolor")) {
-				ECRecolor(message);
-			}
-
-			if (message[0].equals("delete")) {
-				ECDelete(message);
+		// <seq> <clientId> <clientSeq> <op> for ops as the server sequenced them, plain <op> in the join snapshot,
+		// where op is draw <id> <shape> | move <ids> <dx> <dy> | recolor <ids> <rgb> | delete <ids>, ids being one or comma-separated,
+		// or import <firstId> <count> <shapes> from the server
+		if (msg.hasNext()) {
+			EditEvent parse = new EditEvent.Parse();
+			parse.begin();
+			long id;
+			String op;
+			if (msg.atNumber()) {
+				long seq = msg.nextLong();
+				int fromClient = msg.nextInt(), fromClientSeq = msg.nextInt();
+				int verb = msg.position();
+				op = peekOp(msg);
+				dirty = touched(msg, null);
+				id = editor.getReplica().confirm(seq, fromClient, fromClientSeq, msg);
+				msg.seek(verb);
 			}
-
-			if (message[0].equals("move")) {
-				ECMove(message);
+			else {
+				op = peekOp(msg);
+				dirty = touched(msg, null);
+				id = editor.getReplica().snapshot(msg);
+				msg.seek(0);
 			}
-
-			if (message[0].equals("draw")) {
-				ECDraw(message);
+			dirty = touched(msg, dirty);	// where the shapes are now, as well as where they were
+			if (op.equals("draw")) {
+				java.awt.Rectangle previewed = editor.getPreviews().drawn(id);	// the real thing replaces any preview
+				if (previewed != null) dirty = union(dirty, previewed);
 			}
+			parse.of(op, id).commit();
+			editor.showed(op, id);
 		}
+		return dirty;
 	}
 
 	/**
-	 * Handles recoloring of shapes based on received message
-	 * @param msg The message received from the server
+	 * Adds to dirty the bounds, in the sketch as shown, of the shapes named by the op at the tokenizer's position,
+	 * leaving the position where it was
+	 * @return The enlarged area, or null if none of the shapes exists (yet)
 	 */
-	public void ECRecolor(String[] msg)
-	{
-		Shape currShape = editor.getSketch().idShapes.get(msg[1]);
-		currShape.setColor(Color.decode(msg[2]));
+	private java.awt.Rectangle touched(OpTokenizer msg, java.awt.Rectangle dirty) {
+		int verb = msg.position();
+		Sketch shown = editor.getSketch();
+		int code = msg.nextOp();
+		if (code == OpTokenizer.DRAW) {
+			dirty = union(dirty, shown.getShapeById(msg.nextLong()));
+		}
+		else if (code == OpTokenizer.IMPORT) {
+			long first = msg.nextLong();
+			int count = msg.nextInt();
+			for (int i = 0; i < count; i++) dirty = union(dirty, shown.getShapeById(first + i));
+		}
+		else {
+			int n = msg.nextIds();
+			for (int i = 0; i < n; i++) dirty = union(dirty, shown.getShapeById(msg.id(i)));
+		}
+		msg.seek(verb);
+		return dirty;
 	}
 
-	/**
-	 * Handles deletion of shapes based on received message
-	 * @param msg The message received from the server
-	 */
-	public void ECDelete(String[] msg)
-	{
+	private static java.awt.Rectangle union(java.awt.Rectangle dirty, Shape shape) {
+		return shape == null ? dirty : union(dirty, shape.getBounds());
+	}
 
-		Shape currShape = editor.getSketch().idShapes.get(msg[1]);
-		currShape = null;
+	private static java.awt.Rectangle union(java.awt.Rectangle dirty, java.awt.Rectangle bounds) {
+		if (dirty == null) return new java.awt.Rectangle(bounds);
+		dirty.add(bounds);
+		return dirty;
 	}
 
 	/**
-	 * Handles drawing of shapes based on received message
-	 * @param msg The message received from the server
+	 * Applies everything received since the last frame, then repaints once; on the Swing thread, once per frame
 	 */
-	public void ECDraw(String[] msg)
-	{
-		Shape currShape = editor.getSketch().idShapes.get(msg[1]);
-		currShape.draw(editor.getGraphics());
+	private void drain() {
+		Sketch before = editor.getSketch();
+		java.awt.Rectangle dirty = null;
+		int applied = 0;
+		byte[] line;
+		while ((line = inbound.poll()) != null) {
+			applied++;
+			tokens.reset(line, 0, line.length);
+			try {
+				if (tokens.startsWith("welcome ")) {
+					welcomed(tokens.toString());
+					continue;
+				}
+				if (LivePreviews.isPreview(tokens)) {
+					java.awt.Rectangle previewed = editor.getPreviews().received(tokens);
+					if (previewed != null) dirty = union(dirty, previewed);
+					continue;
+				}
+				java.awt.Rectangle touched = decoder(tokens);
+				if (touched != null) dirty = union(dirty, touched);
+			}
+			catch (RuntimeException e) {
+				System.err.println("ignoring malformed message: " + tokens);
+			}
+		}
+		if (applied == 0) {
+			// nothing came this frame: stop, unless something arrived just as we decided to
+			frames.stop();
+			draining.set(false);
+			if (!inbound.isEmpty() && !draining.getAndSet(true)) frames.start();
+			return;
+		}
+		// our pending ops, taken off for others' ops, go back on once for the lot
+		java.awt.Rectangle settled = editor.getReplica().settle();
+		if (settled != null) dirty = union(dirty, settled);
+		// a new sketch (on joining) may have changed anywhere
+		if (editor.getSketch() != before) editor.repaintSketch(null);
+		else if (dirty != null) editor.repaintSketch(dirty);
 	}
 
 	/**
-	 * Handles movement of shapes based on received message
-	 * @param msg The message received from the server
+	 * The op word at the tokenizer's position, leaving the position where it was
 	 */
-	public void ECMove(String[] msg)
-	{
-		Shape currShape = editor.getSketch().idShapes.get(msg[1]);
-		// TO DO:
+	private static String peekOp(OpTokenizer msg) {
+		int verb = msg.position();
+		String op = OpTokenizer.OPS[msg.nextOp()];
+		msg.seek(verb);
+		return op;
 	}
 
 	/**
-	 * Listens for and handles messages from the server
+	 * Connects, then listens for messages from the server, connecting again whenever the connection is lost,
+	 * to the next server in the list
 	 */
 	public void run() {
+		int current = 0;		// which server in the list
+		int failed = 0;			// servers that couldn't be joined since last joining one
+		for (int attempt = 0; ; attempt++) {
+			editor.connectionChanged(attempt == 0 ? "connecting" : "reconnecting");
+			String server = servers[current];
+			Socket sock = null;
+			boolean joined = false;
+			try {
+				sock = new Socket();
+				sock.connect(new InetSocketAddress(host(server), port(server)), CONNECT_MILLIS);
+				sock.setSoTimeout(CONNECT_MILLIS);
+				MessageChannel channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+				handshake(sock, channel);
+				sock.setSoTimeout(0);
+				if (drags != null) drags.retarget(host(server), port(server));
+				joined = true;
+				failed = 0;
+				attempt = 0;
+				editor.connectionChanged(null);
+				// read in place, with no String made of each line; the bytes are copied for the Swing thread
+				OpTokenizer received = new OpTokenizer();
+				while (channel.readLine(received)) {
+					inbound.add(received.copyLine());
+					if (!draining.getAndSet(true)) SwingUtilities.invokeLater(frames::start);
+				}
+				System.out.println("server hung up");
+			}
+			catch (IOException e) {
+				System.err.println("connection to " + server + " failed: " + e.getMessage());
+			}
+			finally {
+				disconnected(sock);
+			}
+			editor.connectionChanged("disconnected");
+			// a server that was joined is tried again first; one that couldn't be, is passed over for the next,
+			// straight away until all of them have been tried
+			if (!joined) {
+				current = (current + 1) % servers.length;
+				if (++failed % servers.length != 0) continue;
+			}
+			try {
+				long cap = Math.min(BACKOFF_MAX, BACKOFF_MIN << Math.min(failed / servers.length, 16));
+				Thread.sleep(cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1));
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
 
-		try {
-			// Handle messages
-			String inline;
-			while ((inline = in.readLine()) != null)
-			{
-
+	/**
+	 * Says hello, asking to resume if we have joined this server before, and sets up writing to it
+	 * (before anything else is sent, so that both ends switch to compression at the same point in the stream)
+	 */
+	private void handshake(Socket sock, MessageChannel channel) throws IOException {
+		PredictedSketch replica = editor.getReplica();
+		String hello = COMPRESS ? "hello deflate" : "hello plain";
+		if (epoch != null && replica.getClientId() >= 0) {
+			hello += " resume " + epoch + " " + replica.getClientId() + " " + replica.getLastSeq();
+		}
+		channel.writeLine(hello);
+		String welcome = channel.readLine();
+		String[] words = welcome == null ? new String[0] : welcome.split(" ");
+		// "welcome <deflate|plain> <clientId> <seq> <epoch>", then "resume <lastClientSeq>" if resuming
+		if (words.length < 5 || !words[0].equals("welcome")) throw new IOException("unexpected welcome: " + welcome);
+		if (words[1].equals("deflate")) channel.enableCompression();
+		epoch = words[4];
+		OutboundWriter writer = new OutboundWriter(channel, sock);
+		writer.start();
+		if (words.length == 7 && words[5].equals("resume")) {
+			// pick up where we left off: send again what the server didn't get, then carry on
+			int handled = Integer.parseInt(words[6]);
+			synchronized (replica) {
+				// as one message, since there may be more than the queue holds
+				java.util.List<String> again = replica.pendingAfter(handled);
+				if (!again.isEmpty()) writer.send(String.join("\n", again));
+				outbound = writer;
 			}
+			System.out.println("...resumed" + (channel.isCompressed() ? " (compressed)" : ""));
+		}
+		else {
+			// a new session: the Swing thread resets the replica and installs the writer when it gets to the welcome,
+			// so nothing from the old session is applied after it, or sent before it
+			inbound.clear();
+			joining = writer;
+			inbound.add(welcome.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+			System.out.println("...connected" + (channel.isCompressed() ? " (compressed)" : ""));
+		}
+		try {
+			writer.registerMBean();
+		}
+		catch (JMException e) {
+			System.err.println("couldn't register outbound metrics: " + e.getMessage());
 		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
+	}
+
+	/**
+	 * Joins a new session; on the Swing thread, in order with the messages around it.
+	 * Whatever was done while not joined is sent then, renumbered for the new session.
+	 * @param welcome "welcome <deflate|plain> <clientId> <seq> <epoch>"
+	 */
+	private void welcomed(String welcome) {
+		String[] words = welcome.split(" ");
+		PredictedSketch replica = editor.getReplica();
+		synchronized (replica) {
+			java.util.List<String> carried = replica.joined(Integer.parseInt(words[2]), Long.parseLong(words[3]));
+			outbound = joining;
+			if (!carried.isEmpty()) send(String.join("\n", carried));
 		}
-		finally {
-			System.out.println("server hung up");
+		editor.getPreviews().clear();
+	}
+
+	/**
+	 * Stops writing to and closes a lost connection
+	 */
+	private void disconnected(Socket sock) {
+		OutboundWriter writer = outbound;
+		outbound = null;
+		if (writer != null) writer.interrupt();
+		if (joining != null) joining.interrupt();
+		joining = null;
+		if (sock != null) {
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// gone anyway
+			}
 		}
 	}
 }
@@ -116,6 +116,15 @@ public class Ellipse implements Shape {
 		g.fillOval(x1, y1, x2 - x1, y2 - y1); // Draw filled ellipse
 	}
 
+	/**
+	 * Gets the bounding box of the ellipse.
+	 * @return The rectangle from the upper-left to the lower-right corner
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+	}
+
 	/**
 	 * Returns a string representation of the ellipse.
 	 * @return A string representing the ellipse with its coordinates and color
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks failover end to end, with a leader and a standby each in a process of its own.
+ *
+ * It starts a SketchServer as leader and a second as a standby following it on a port of its own, joins the leader
+ * as an editor would, draws and moves a shape, and waits until the leader's metrics show the standby has acked
+ * every op. Then it kills the leader outright and does what an editor given "leader,standby" does: fails to reach
+ * the leader, goes on to the standby, and asks to resume. It checks that the standby lets it resume, says it had
+ * both ops, sequences a third, and gives a newcomer a snapshot with the shape where it was moved.
+ * Each check is printed as it passes; the first to fail is printed and the exit status is 1.
+ *
+ * Run with: java FailoverCheck [leaderPort] [standbyPort]
+ * (defaults 4252 and 4254; each server's metrics are on the port after its own)
+ */
+public class FailoverCheck {
+	private static final int WAIT_MILLIS = 15000;	// for each step, at most
+
+	private final int leaderPort, standbyPort;
+	private final List<Process> servers = new ArrayList<Process>();
+
+	public FailoverCheck(int leaderPort, int standbyPort) {
+		this.leaderPort = leaderPort;
+		this.standbyPort = standbyPort;
+	}
+
+	/**
+	 * A SketchServer in a process of its own, on this one's classpath, its output mixed into ours
+	 */
+	private Process start(int port, String... more) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dsketch.metrics.port=" + (port + 1));
+		command.add("SketchServer");
+		command.add(Integer.toString(port));
+		for (String arg : more) command.add(arg);
+		Process process = new ProcessBuilder(command).inheritIO().start();
+		servers.add(process);
+		return process;
+	}
+
+	/**
+	 * Connects, trying until the server is up
+	 */
+	private static Socket connect(int port) throws IOException, InterruptedException {
+		long until = System.currentTimeMillis() + WAIT_MILLIS;
+		while (true) {
+			Socket sock = new Socket();
+			try {
+				sock.connect(new InetSocketAddress("localhost", port), 1000);
+				sock.setSoTimeout(WAIT_MILLIS);
+				return sock;
+			}
+			catch (IOException e) {
+				sock.close();
+				if (System.currentTimeMillis() > until) throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private static String metrics(int port) throws IOException {
+		try (InputStream in = new URL("http://localhost:" + (port + 1) + "/metrics").openStream()) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Whether the metrics show a follower with no ops left to ack
+	 */
+	private static boolean caughtUp(String metrics) {
+		for (String line : metrics.split("\n")) {
+			if (line.startsWith("follower_lag_ops") && line.endsWith(" 0")) return true;
+		}
+		return false;
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) throw new IllegalStateException("FAILED: " + what);
+		System.out.println("ok: " + what);
+	}
+
+	public void run() throws Exception {
+		Process leader = start(leaderPort);
+		Socket sock = connect(leaderPort);
+		start(standbyPort, "--follow", "localhost:" + leaderPort);
+
+		// join the leader, and make two ops
+		MessageChannel channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+		channel.writeLine("hello plain");
+		String[] welcome = channel.readLine().split(" ");
+		check(welcome[0].equals("welcome"), "joined the leader as client " + welcome[2]);
+		int clientId = Integer.parseInt(welcome[2]);
+		String epoch = welcome[4];
+		long id = Sketch.id(clientId, 1);
+		channel.writeLine("1 draw " + id + " rectangle 10 10 50 50 -16777216");
+		channel.writeLine("2 move " + id + " 5 7");
+		long lastSeq = 0;
+		for (int i = 0; i < 2; i++) {
+			String[] op = channel.readLine().split(" ");
+			lastSeq = Long.parseLong(op[0]);
+		}
+		check(lastSeq > 0, "leader sequenced both ops, up to seq " + lastSeq);
+
+		// wait for the standby to have them
+		long until = System.currentTimeMillis() + WAIT_MILLIS;
+		while (!caughtUp(metrics(leaderPort))) {
+			if (System.currentTimeMillis() > until) check(false, "standby acked every op in time");
+			Thread.sleep(100);
+		}
+		check(true, "standby acked every op");
+
+		// the leader dies
+		leader.destroyForcibly().waitFor();
+		sock.close();
+		check(!leader.isAlive(), "leader killed");
+
+		// as the editor: the leader is gone, so on to the standby, asking to resume
+		boolean refused = false;
+		try (Socket gone = new Socket()) {
+			gone.connect(new InetSocketAddress("localhost", leaderPort), 1000);
+		}
+		catch (IOException e) {
+			refused = true;
+		}
+		check(refused, "leader no longer accepts");
+		sock = connect(standbyPort);
+		channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+		channel.writeLine("hello plain resume " + epoch + " " + clientId + " " + lastSeq);
+		String[] resumed = channel.readLine().split(" ");
+		check(resumed.length == 7 && resumed[5].equals("resume"), "standby lets the editor resume: " + String.join(" ", resumed));
+		check(resumed[2].equals(Integer.toString(clientId)), "editor keeps client id " + clientId);
+		check(resumed[6].equals("2"), "standby had both of the editor's ops");
+		channel.writeLine("3 recolor " + id + " -65536");
+		String[] op = channel.readLine().split(" ", 4);
+		check(op[1].equals(Integer.toString(clientId)) && op[2].equals("3") && Long.parseLong(op[0]) == lastSeq + 1,
+				"standby sequences the editor's next op as seq " + op[0]);
+
+		// a newcomer sees the board as it was left
+		try (Socket other = connect(standbyPort)) {
+			MessageChannel newcomer = new MessageChannel(other.getInputStream(), other.getOutputStream());
+			newcomer.writeLine("hello plain");
+			newcomer.readLine();
+			String draw = newcomer.readLine();
+			check(draw.equals("draw " + id + " rectangle 15 17 55 57 -65536"), "newcomer's snapshot has the shape: " + draw);
+		}
+		sock.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int leaderPort = args.length > 0 ? Integer.parseInt(args[0]) : 4252;
+		int standbyPort = args.length > 1 ? Integer.parseInt(args[1]) : 4254;
+		FailoverCheck check = new FailoverCheck(leaderPort, standbyPort);
+		int status = 0;
+		try {
+			check.run();
+			System.out.println("failover ok");
+		}
+		catch (IllegalStateException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		}
+		finally {
+			for (Process server : check.servers) server.destroyForcibly();
+		}
+		System.exit(status);
+	}
+}
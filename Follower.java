@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A standby server's link to its leader: keeps the standby's SketchServer a replica of the leader's until the leader fails.
+ *
+ * The follower joins the leader like an editor, saying "hello <mode> follow", takes the leader's seq and epoch from
+ * the welcome and its board from the snapshot, and then applies every op the leader sequences as it arrives (see
+ * SketchServer.replicate), keeping the recent ops and each client's last clientSeq just as the leader does.
+ * Every heartbeat is answered with "ack <seq>". Lag is reported both ways: the leader sees how many ops behind each
+ * follower's last ack is, and the follower how old the last heartbeat was on arrival (by the two hosts' clocks) and
+ * how long it has been since it heard anything. Hearing nothing for TIMEOUT_MILLIS, or losing the connection, counts
+ * as the leader failing: follow() returns and the standby takes over.
+ */
+public class Follower {
+	private static final int TIMEOUT_MILLIS = Integer.getInteger("sketch.follow.timeout", 3000);	// silence that means the leader is gone
+
+	private final SketchServer server;		// the standby, kept up to date
+	private final String host;
+	private final int port;
+	private volatile long lagMillis = -1;		// how old the last heartbeat was when it arrived
+	private volatile long lastHeard = 0;		// when anything last came from the leader, in millis
+	private volatile long leaderSeq = 0;		// the seq in the last heartbeat
+	private volatile boolean promoted = false;	// whether the leader failed and this server took over
+
+	public Follower(SketchServer server, String host, int port) {
+		this.server = server;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Follows the leader until it fails
+	 * @throws IOException if the leader can't be reached to start with
+	 */
+	public void follow() throws IOException {
+		System.out.println("following " + host + ":" + port + "...");
+		Socket sock = new Socket(host, port);
+		try {
+			sock.setSoTimeout(TIMEOUT_MILLIS);
+			MessageChannel channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+			channel.writeLine("hello deflate follow");
+			String welcome = channel.readLine();
+			String[] words = welcome == null ? new String[0] : welcome.split(" ");
+			// "welcome <deflate|plain> <clientId> <seq> <epoch> clients <last client id handed out> <clientSeqs>"
+			if (words.length < 5 || !words[0].equals("welcome")) throw new IOException("unexpected welcome: " + welcome);
+			if (words[1].equals("deflate")) channel.enableCompression();
+			int clients = Integer.parseInt(words[2]);
+			if (words.length >= 7 && words[5].equals("clients")) clients = Math.max(clients, Integer.parseInt(words[6]));
+			server.followed(clients, Long.parseLong(words[3]), words[4], words.length >= 8 ? words[7] : "-");
+			lastHeard = System.currentTimeMillis();
+			System.out.println("...following from seq " + words[3]);
+
+			String line;
+			while ((line = channel.readLine()) != null) {
+				lastHeard = System.currentTimeMillis();
+				if (line.startsWith("heartbeat ")) {
+					// "heartbeat <seq> <millis>", in order with the ops, so everything up to seq has been applied
+					String[] beat = line.split(" ");
+					leaderSeq = Long.parseLong(beat[1]);
+					lagMillis = Math.max(0, lastHeard - Long.parseLong(beat[2]));
+					channel.writeLine("ack " + server.getSeq());
+				}
+				else if (!LivePreviews.isPreview(line)) {
+					try {
+						server.replicate(line);
+					}
+					catch (RuntimeException e) {
+						System.err.println("couldn't replicate: " + line);
+					}
+				}
+			}
+			System.out.println("leader hung up");
+		}
+		catch (SocketTimeoutException e) {
+			System.out.println("leader silent for " + TIMEOUT_MILLIS + "ms");
+		}
+		catch (IOException e) {
+			System.out.println("lost the leader: " + e.getMessage());
+		}
+		finally {
+			promoted = true;
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// gone anyway
+			}
+		}
+	}
+
+	/**
+	 * How old the last heartbeat was on arrival, in millis, or -1 before the first
+	 */
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	/**
+	 * Millis since anything came from the leader
+	 */
+	public long getSilenceMillis() {
+		return lastHeard == 0 ? -1 : System.currentTimeMillis() - lastHeard;
+	}
+
+	/**
+	 * The leader's seq as of its last heartbeat
+	 */
+	public long getLeaderSeq() {
+		return leaderSeq;
+	}
+
+	public boolean isPromoted() {
+		return promoted;
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with log-linear buckets, in the spirit of HdrHistogram.
+ * Each power of two is split into 16 linear sub-buckets, so any recorded value
+ * is reported within about 6% of what was recorded.
+ * Recording is a few shifts plus one atomic increment, cheap enough to leave on in production.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();		// number of recorded values
+	private final LongAdder sum = new LongAdder();			// sum of recorded values, for the mean
+	private final AtomicLong max = new AtomicLong();		// largest recorded value
+
+	/**
+	 * Records one value; negative values are clamped to 0
+	 * @param value The value to record (nanoseconds, bytes, ...)
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		total.increment();
+		sum.add(value);
+		if (value > max.get()) max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * @return The number of recorded values
+	 */
+	public long getCount() {
+		return total.sum();
+	}
+
+	/**
+	 * @return The largest recorded value, or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the recorded values, or 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Finds the value below which the given percentage of recorded values fall.
+	 * Concurrent recording may make the answer slightly stale, never wrong by more than a bucket.
+	 * @param percentile Between 0 and 100
+	 * @return The upper bound of the bucket holding that percentile, or 0 if nothing was recorded
+	 */
+	public long valueAtPercentile(double percentile) {
+		long n = total.sum();
+		if (n == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) return Math.min(upperBoundOf(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * One-line summary, scaled by the given divisor (e.g. 1000 to report nanoseconds as microseconds)
+	 */
+	public String summary(long divisor) {
+		return "count=" + getCount()
+				+ " mean=" + String.format("%.1f", getMean() / divisor)
+				+ " p50=" + valueAtPercentile(50) / divisor
+				+ " p99=" + valueAtPercentile(99) / divisor
+				+ " p999=" + valueAtPercentile(99.9) / divisor
+				+ " max=" + getMax() / divisor;
+	}
+
+	/**
+	 * Index of the bucket for a value: values below 16 get their own bucket,
+	 * larger ones keep their top 5 significant bits
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		int sub = (int) (value >>> shift);	// in [SUB_COUNT, 2*SUB_COUNT)
+		return (shift + 1) * SUB_COUNT + (sub - SUB_COUNT);
+	}
+
+	/**
+	 * Largest value that falls into the given bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_COUNT) return bucket;
+		int shift = bucket / SUB_COUNT - 1;
+		long sub = bucket % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
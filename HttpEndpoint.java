@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The server's local HTTP endpoint: SketchMetrics as plain text, e.g. curl http://localhost:4243/metrics
+ * and, if asked to, thumbnails of the board, e.g. curl -o board.png 'http://localhost:4243/thumbnail?w=320&h=240'
+ * imports of shape files, e.g. curl --data-binary @board.txt http://localhost:4243/import
+ * and the board as it was at a seq in its history, e.g. curl 'http://localhost:4243/history?seq=1200'
+ * or drawn, e.g. curl -o then.png 'http://localhost:4243/history?seq=1200&w=640&h=480'
+ * Bound to the loopback interface only.
+ */
+public class HttpEndpoint {
+	private static final int THUMBNAIL_SIDE = 256;		// pixels a side when the request doesn't say
+	private static final int MAX_IMPORT = Integer.getInteger("sketch.import.max", 64 << 20);	// bytes of shape file taken at most
+	private static final String IMPORT_TOKEN = System.getProperty("sketch.import.token");	// needed to import, if set
+
+	private final HttpServer http;
+	private final ExecutorService threads = Executors.newFixedThreadPool(4);	// serve the requests, a slow render not holding up the rest
+
+	public HttpEndpoint(int port, SketchMetrics metrics) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.setExecutor(threads);
+		http.createContext("/metrics", exchange -> reply(exchange, metrics.toText()));
+	}
+
+	/**
+	 * Serves thumbnails at /thumbnail?w=<width>&h=<height>, as PNG
+	 */
+	public void serveThumbnails(ThumbnailRenderer thumbnails) {
+		http.createContext("/thumbnail", exchange -> {
+			int width = THUMBNAIL_SIDE, height = THUMBNAIL_SIDE;
+			byte[] png;
+			try {
+				String query = exchange.getRequestURI().getQuery();
+				if (query != null) {
+					for (String param : query.split("&")) {
+						if (param.startsWith("w=")) width = Integer.parseInt(param.substring(2));
+						else if (param.startsWith("h=")) height = Integer.parseInt(param.substring(2));
+					}
+				}
+				png = thumbnails.png(width, height);
+			}
+			catch (IllegalArgumentException e) {	// including NumberFormatException
+				exchange.sendResponseHeaders(400, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, png.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(png);
+			}
+		});
+	}
+
+	/**
+	 * Takes shape files POSTed to /import (see ShapeImporter) and adds their shapes to the server's sketch,
+	 * answering with how many were imported and the id of the first.
+	 * Files over MAX_IMPORT bytes are refused (413). Besides the endpoint being on loopback only, if sketch.import.token
+	 * is set, a request must carry it in an X-Sketch-Token header (403 otherwise), so that not just anyone on the
+	 * server's host can write to the board.
+	 */
+	public void serveImports(SketchServer server) {
+		ShapeImporter importer = new ShapeImporter();
+		byte[] token = IMPORT_TOKEN == null ? null : IMPORT_TOKEN.getBytes(StandardCharsets.UTF_8);
+		http.createContext("/import", exchange -> {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.sendResponseHeaders(405, -1);
+				exchange.close();
+				return;
+			}
+			String given = exchange.getRequestHeaders().getFirst("X-Sketch-Token");
+			if (token != null && (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8)))) {
+				exchange.sendResponseHeaders(403, -1);
+				exchange.close();
+				return;
+			}
+			Shape[] shapes;
+			try (java.io.InputStream in = exchange.getRequestBody()) {
+				byte[] body = in.readNBytes(MAX_IMPORT + 1);
+				if (body.length > MAX_IMPORT) {
+					exchange.sendResponseHeaders(413, -1);
+					exchange.close();
+					return;
+				}
+				shapes = importer.read(body);
+			}
+			catch (IllegalArgumentException e) {
+				byte[] why = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(400, why.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(why);
+				}
+				return;
+			}
+			long first = server.importShapes(shapes);
+			reply(exchange, "imported " + shapes.length + " from " + first + "\n");
+		});
+	}
+
+	/**
+	 * Serves the board as it stood after a given op at /history?seq=<seq>, as the "draw <id> <shape>" lines of a snapshot,
+	 * or given &w=<width>&h=<height> too, as a PNG of that size drawn like a thumbnail;
+	 * without a seq, the range of seqs there is history for
+	 */
+	public void serveHistory(SketchHistory history) {
+		http.createContext("/history", exchange -> {
+			String query = exchange.getRequestURI().getQuery();
+			long seq = -1;
+			int width = 0, height = 0;
+			try {
+				if (query != null) {
+					for (String param : query.split("&")) {
+						if (param.startsWith("seq=")) seq = Long.parseLong(param.substring(4));
+						else if (param.startsWith("w=")) width = Integer.parseInt(param.substring(2));
+						else if (param.startsWith("h=")) height = Integer.parseInt(param.substring(2));
+					}
+				}
+			}
+			catch (NumberFormatException e) {
+				exchange.sendResponseHeaders(400, -1);
+				exchange.close();
+				return;
+			}
+			if (seq < 0) {
+				reply(exchange, "history from " + history.getFirstSeq() + " to " + history.getLastSeq()
+						+ " in " + history.getKeyframes() + " keyframes\n");
+				return;
+			}
+			Sketch board;
+			try {
+				board = history.at(seq);
+			}
+			catch (IllegalArgumentException e) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			if (width == 0 && height == 0) {
+				reply(exchange, board.toString());
+				return;
+			}
+			byte[] png;
+			try {
+				png = ThumbnailRenderer.png(board.getShapes(), width, height);
+			}
+			catch (IllegalArgumentException e) {
+				exchange.sendResponseHeaders(400, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, png.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(png);
+			}
+		});
+	}
+
+	public void start() {
+		http.start();
+	}
+
+	public void stop() {
+		http.stop(0);
+		threads.shutdown();
+	}
+
+	/**
+	 * Sends a text body back for the request
+	 */
+	static void reply(HttpExchange exchange, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
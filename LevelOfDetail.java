@@ -0,0 +1,323 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Draws a Sketch zoomed out without spending time on detail smaller than a pixel.
+ *
+ * Zoom levels are powers of two: level L draws the sketch at scale 2^-L, and any zoom between that and
+ * half of it is drawn from level L, scaled down a little more. For each level in use a display list is
+ * built at the level's resolution: shapes under a pixel across become single pixels, polyline segments
+ * are snapped to the level's pixels with the ones that vanish or repeat dropped, and everything else is
+ * kept as is. Pixels and shapes are drawn in the sketch's stacking order, so a shape covers the pixels below it.
+ * Optionally the single pixels are instead gathered into a density heatmap, drawn over the shapes.
+ * The display lists are cached, and when the sketch is edited just the entries of the shapes it says were edited
+ * (Sketch.changedSince) are redone, so drawing a busy board zoomed out costs in proportion to the edits, not the board.
+ * A level is built afresh when a different sketch is drawn, when the sketch can't say what changed, or when an edit
+ * turns a pixel into a shape or back.
+ */
+public class LevelOfDetail {
+	private static final int CELL = 8;				// heatmap cell size, in level pixels
+	private static final int MAX_LEVEL = 10;		// don't keep simplifying past 1/1024
+	private static final int GONE = Integer.MIN_VALUE;	// a dot's x once its shape no longer is one
+
+	private boolean heatmap = false;				// draw sub-pixel shapes as density rather than as pixels
+	private Sketch cachedFor = null;				// the sketch the cached levels were built from
+	private final Map<Integer, Level> levels = new HashMap<Integer, Level>();	// level -> display list
+
+	/**
+	 * What to draw for one level, in that level's pixels
+	 */
+	private static class Level {
+		final double scale;										// level pixels per sketch unit
+		long version = -1;										// the sketch's version it was brought up to date with
+		final LinkedHashMap<Long, Shape> shapes = new LinkedHashMap<Long, Shape>();	// shapes big enough to keep, by ID, in stacking order
+		final Map<Long, Integer> dotsUnder = new HashMap<Long, Integer>();	// by kept shape's ID, how many of the dots are below it
+		int[] dots = new int[48];								// x, y, rgb of each shape drawn as a pixel; x is GONE once it isn't
+		int dotCount = 0;
+		int gone = 0;											// dots whose shape has since been deleted or grown
+		long[] dotIds = new long[16];							// the ID of each dot's shape
+		Map<Long, Integer> dotOf = null;						// ID -> its dot; made from dotIds once first needed
+		final Map<Long, Integer> density = new HashMap<Long, Integer>();	// heatmap cell -> sub-pixel shapes in it
+		int maxDensity = 0;
+
+		Level(double scale) {
+			this.scale = scale;
+		}
+
+		void dot(long id, int x, int y, int rgb) {
+			if (dotCount * 3 == dots.length) dots = java.util.Arrays.copyOf(dots, dots.length * 2);
+			if (dotCount == dotIds.length) dotIds = java.util.Arrays.copyOf(dotIds, dotIds.length * 2);
+			dots[dotCount * 3] = x;
+			dots[dotCount * 3 + 1] = y;
+			dots[dotCount * 3 + 2] = rgb;
+			dotIds[dotCount] = id;
+			if (dotOf != null) dotOf.put(id, dotCount);
+			dotCount++;
+			maxDensity = Math.max(maxDensity, density.merge(cell(x, y), 1, Integer::sum));
+		}
+
+		void undot(int i) {
+			int x = dots[i * 3], y = dots[i * 3 + 1];
+			density.computeIfPresent(cell(x, y), (cell, n) -> n == 1 ? null : n - 1);
+			dots[i * 3] = GONE;
+			gone++;
+		}
+
+		static long cell(int x, int y) {
+			return ((long) Math.floorDiv(x, CELL) << 32) | (Math.floorDiv(y, CELL) & 0xffffffffL);
+		}
+
+		/**
+		 * Redoes the entries of the shapes edited, as they are now
+		 * @param edits The edits, as Sketch.changedSince() gives them
+		 * @return false if it can't, and the level has to be built afresh
+		 */
+		boolean refresh(Sketch sketch, long[] edits) {
+			if (edits.length > shapes.size() + dotCount - gone) return false;	// as cheap to start over
+			if (dotOf == null) {
+				dotOf = new HashMap<Long, Integer>(dotCount * 4 / 3 + 1);
+				for (int i = 0; i < dotCount; i++) {
+					if (dots[i * 3] != GONE) dotOf.put(dotIds[i], i);
+				}
+			}
+			Map<Long, Integer> last = new HashMap<Long, Integer>();	// each shape's last edit other than a delete
+			for (int i = 0; i < edits.length; i++) {
+				if (edits[i] >= 0) last.put(edits[i], i);
+			}
+			for (int i = 0; i < edits.length; i++) {
+				long id = edits[i] >= 0 ? edits[i] : ~edits[i];
+				Shape shape = null;
+				if (edits[i] >= 0) {
+					if (last.get(id) != i) continue;	// its last edit will do
+					shape = sketch.getShapeById(id);
+				}
+				Integer dot = dotOf.get(id);
+				if (shape == null) {
+					if (dot != null) {
+						undot(dot);
+						dotOf.remove(id);
+					}
+					shapes.remove(id);
+					dotsUnder.remove(id);
+				}
+				else if (small(shape, scale)) {
+					if (dot == null && shapes.containsKey(id)) return false;	// shrunk to a pixel: where it goes among the dots is lost
+					java.awt.Rectangle bounds = shape.getBounds();
+					int x = (int) Math.floor((bounds.x + bounds.width / 2.0) * scale);
+					int y = (int) Math.floor((bounds.y + bounds.height / 2.0) * scale);
+					if (dot == null) {
+						dot(id, x, y, shape.getColor().getRGB());	// added on top
+					}
+					else {
+						density.computeIfPresent(cell(dots[dot * 3], dots[dot * 3 + 1]), (cell, n) -> n == 1 ? null : n - 1);
+						dots[dot * 3] = x;
+						dots[dot * 3 + 1] = y;
+						dots[dot * 3 + 2] = shape.getColor().getRGB();
+						density.merge(cell(x, y), 1, Integer::sum);
+					}
+				}
+				else {
+					if (dot != null) return false;	// grown from a pixel: where it goes among the shapes is lost
+					shapes.put(id, simplify(shape, scale));	// replaced where it stands, or added on top
+					dotsUnder.putIfAbsent(id, dotCount);
+				}
+			}
+			if (gone > dotCount / 2) return false;
+			maxDensity = 0;
+			for (int n : density.values()) maxDensity = Math.max(maxDensity, n);
+			return true;
+		}
+	}
+
+	/**
+	 * Whether sub-pixel shapes are drawn as a density heatmap instead of one pixel each
+	 */
+	public synchronized void setHeatmap(boolean heatmap) {
+		this.heatmap = heatmap;
+	}
+
+	/**
+	 * Draws the sketch at the given zoom
+	 * @param g Where to draw, in screen pixels
+	 * @param sketch The sketch
+	 * @param zoom Screen pixels per sketch unit
+	 */
+	public synchronized void draw(Graphics g, Sketch sketch, double zoom) {
+		Graphics2D g2 = (Graphics2D) g.create();
+		try {
+			if (zoom >= 1) {
+				g2.scale(zoom, zoom);
+				sketch.draw(g2);
+				return;
+			}
+			int level = Math.min(MAX_LEVEL, (int) Math.floor(Math.log(1 / zoom) / Math.log(2) + 1e-9));
+			double levelScale = Math.pow(2, -level);
+			Level lod = get(sketch, level, levelScale);
+			g2.scale(zoom / levelScale, zoom / levelScale);
+			double ratio = zoom / levelScale;
+			int dotsDrawn = 0;
+			for (Map.Entry<Long, Shape> shape : lod.shapes.entrySet()) {
+				if (!heatmap) {
+					int under = lod.dotsUnder.get(shape.getKey());
+					drawDots(g2, lod, ratio, dotsDrawn, under);
+					dotsDrawn = under;
+				}
+				shape.getValue().draw(g2);
+			}
+			if (heatmap) drawDensity(g2, lod);
+			else drawDots(g2, lod, ratio, dotsDrawn, lod.dotCount);
+		}
+		finally {
+			g2.dispose();
+		}
+	}
+
+	/**
+	 * The display list for a level, brought up to date with the sketch
+	 */
+	private Level get(Sketch sketch, int level, double levelScale) {
+		if (sketch != cachedFor) {
+			levels.clear();
+			cachedFor = sketch;
+		}
+		Level lod = levels.get(level);
+		long version;
+		long[] edits = null;
+		synchronized (sketch) {
+			version = sketch.getVersion();
+			if (lod != null && lod.version != version) edits = sketch.changedSince(lod.version);
+		}
+		if (lod != null && lod.version != version && (edits == null || !lod.refresh(sketch, edits))) lod = null;
+		if (lod == null) {
+			// the shapes read after the version, so an edit in between is redone next time
+			lod = build(sketch.getMap(), levelScale);
+			levels.put(level, lod);
+		}
+		lod.version = version;
+		return lod;
+	}
+
+	private static Level build(Map<Long, Shape> shapes, double scale) {
+		Level lod = new Level(scale);
+		for (Map.Entry<Long, Shape> entry : shapes.entrySet()) {
+			Shape shape = entry.getValue();
+			if (small(shape, scale)) {
+				java.awt.Rectangle bounds = shape.getBounds();
+				lod.dot(entry.getKey(), (int) Math.floor((bounds.x + bounds.width / 2.0) * scale),
+						(int) Math.floor((bounds.y + bounds.height / 2.0) * scale), shape.getColor().getRGB());
+			}
+			else {
+				lod.shapes.put(entry.getKey(), simplify(shape, scale));
+				lod.dotsUnder.put(entry.getKey(), lod.dotCount);
+			}
+		}
+		return lod;
+	}
+
+	/**
+	 * Whether a shape is under a pixel across at a level, and drawn as one
+	 */
+	private static boolean small(Shape shape, double scale) {
+		java.awt.Rectangle bounds = shape.getBounds();
+		return bounds.width * scale <= 1 && bounds.height * scale <= 1;
+	}
+
+	/**
+	 * A shape in level pixels
+	 */
+	private static Shape simplify(Shape shape, double scale) {
+		java.awt.Rectangle bounds = shape.getBounds();
+		Color color = shape.getColor();
+		if (shape instanceof Ellipse || shape instanceof Rectangle) {
+			// their bounds are their corners, without going through the string form
+			int x1 = scaled(bounds.x, scale), y1 = scaled(bounds.y, scale);
+			int x2 = scaled(bounds.x + bounds.width - 1, scale), y2 = scaled(bounds.y + bounds.height - 1, scale);
+			return shape instanceof Ellipse ? new Ellipse(x1, y1, x2, y2, color) : new Rectangle(x1, y1, x2, y2, color);
+		}
+		String[] parts = shape.toString().split(" ");
+		switch (parts[0]) {
+			case "ellipse":
+				return new Ellipse(at(parts[1], scale), at(parts[2], scale), at(parts[3], scale), at(parts[4], scale), color);
+			case "rectangle":
+				return new Rectangle(at(parts[1], scale), at(parts[2], scale), at(parts[3], scale), at(parts[4], scale), color);
+			case "segment":
+				return new Segment(at(parts[1], scale), at(parts[2], scale), at(parts[3], scale), at(parts[4], scale), color);
+			default:
+				return simplify(parts, scale, color);
+		}
+	}
+
+	/**
+	 * A coordinate in level pixels
+	 */
+	private static int at(String coordinate, double scale) {
+		return scaled(Integer.parseInt(coordinate), scale);
+	}
+
+	private static int scaled(int coordinate, double scale) {
+		return (int) Math.round(coordinate * scale);
+	}
+
+	/**
+	 * A polyline's segments snapped to level pixels, leaving out those that shrink to a point or land on one already kept
+	 */
+	private static Polyline simplify(String[] parts, double scale, Color color) {
+		ArrayList<Segment> kept = new ArrayList<Segment>();
+		Set<List<Integer>> seen = new HashSet<List<Integer>>();
+		for (int i = 1; i + 4 < parts.length; i += 4) {
+			int x1 = at(parts[i], scale), y1 = at(parts[i + 1], scale);
+			int x2 = at(parts[i + 2], scale), y2 = at(parts[i + 3], scale);
+			if (x1 == x2 && y1 == y2) continue;
+			// the same pixels either way round
+			List<Integer> key = x1 < x2 || (x1 == x2 && y1 < y2) ? List.of(x1, y1, x2, y2) : List.of(x2, y2, x1, y1);
+			if (seen.add(key)) kept.add(new Segment(x1, y1, x2, y2, color));
+		}
+		if (kept.isEmpty() && parts.length > 5) {
+			int x = at(parts[1], scale), y = at(parts[2], scale);
+			kept.add(new Segment(x, y, x, y, color));
+		}
+		return new Polyline(kept, color);
+	}
+
+	/**
+	 * Draws each of a run of sub-pixel shapes as one screen pixel
+	 * @param from The first dot, in stacking order
+	 * @param to Just past the last
+	 */
+	private static void drawDots(Graphics2D g, Level lod, double ratio, int from, int to) {
+		int size = (int) Math.ceil(1 / ratio);		// a screen pixel, in level pixels
+		int lastRgb = 0;
+		boolean colored = false;
+		for (int i = from; i < to; i++) {
+			if (lod.dots[i * 3] == GONE) continue;
+			int rgb = lod.dots[i * 3 + 2];
+			if (!colored || rgb != lastRgb) {
+				colored = true;
+				g.setColor(new Color(rgb));
+				lastRgb = rgb;
+			}
+			g.fillRect(lod.dots[i * 3], lod.dots[i * 3 + 1], size, size);
+		}
+	}
+
+	/**
+	 * Shades each heatmap cell by how many sub-pixel shapes fall in it, from blue for few to red for the most
+	 */
+	private static void drawDensity(Graphics2D g, Level lod) {
+		double max = Math.log1p(lod.maxDensity);
+		for (Map.Entry<Long, Integer> cell : lod.density.entrySet()) {
+			float heat = (float) (Math.log1p(cell.getValue()) / max);
+			Color hue = Color.getHSBColor((1 - heat) * 0.66f, 1, 1);
+			g.setColor(new Color(hue.getRed(), hue.getGreen(), hue.getBlue(), 64 + (int) (heat * 160)));
+			g.fillRect((int) (cell.getKey() >> 32) * CELL, (int) (long) cell.getKey() * CELL, CELL, CELL);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.swing.Timer;
+
+/**
+ * Shapes still being drawn: ours, streamed to everyone else as they grow, and theirs, shown until they are drawn.
+ *
+ * While a shape is being drawn here, what it looks like is sent at most RATE times a second, however fast the mouse
+ * moves: each tick of a Swing timer sends the latest state if it has changed since the last. A freehand stroke is
+ * sent whole once, as "preview <id> <shape>", then only its new segments, as "extend <id> <x1> <y1> <x2> <y2> ...";
+ * other shapes are small enough to send whole each time. The preview uses the id the shape will be drawn under, so
+ * others drop it when the draw arrives. The server passes previews on without keeping them, and sends
+ * "unpreview <id>" for those whose author disconnects before drawing them.
+ *
+ * With a DragChannel, previews go as datagrams instead, each the whole shape under a number that goes up with every
+ * one sent, so a lost one is made good by the next and a late one is dropped; with nothing new to say, the last is
+ * sent again every KEEP_MILLIS, in case it was lost. A freehand stroke that outgrows a datagram goes on over the
+ * connection as above, and datagrams for it are ignored from then on. Others' datagram previews not heard from for
+ * EXPIRE_MILLIS are dropped, as no one says "unpreview" for them.
+ * All on the Swing thread.
+ */
+public class LivePreviews {
+	private static final int RATE = Integer.getInteger("sketch.preview.rate", 20);	// previews sent per second at most; 0 for none
+	private static final int KEEP_MILLIS = 500;		// how often an unchanged datagram preview is sent again
+	private static final int EXPIRE_MILLIS = 2000;	// how long a datagram preview is shown without hearing from it
+	private static final long OVER_CONNECTION = Long.MAX_VALUE;	// heard seq of a shape whose datagrams are ignored
+
+	private final Map<Long, Shape> others = new HashMap<Long, Shape>();	// others' shapes being drawn, by id
+	private final Timer ticks;
+	private long id = -1;			// the shape we are drawing, -1 if none
+	private Shape drawing;			// what it looks like now
+	private boolean changed;		// whether it has changed since last sent
+	private int sentSegments = -1;	// for a polyline, segments already sent; -1 before it is first sent
+	private DragChannel datagrams;	// sends previews as datagrams, or null to send them over the connection
+	private Consumer<java.awt.Rectangle> repaint;	// told where datagram previews changed or expired
+	private boolean overConnection;	// whether the shape being drawn has outgrown a datagram
+	private long sentAt;			// when it was last sent, in nanos
+	private final Map<Long, Heard> heard = new HashMap<Long, Heard>();	// for others' shapes previewed in datagrams, by id
+	private final Timer expiry;
+
+	/**
+	 * The latest datagram preview of a shape, or that it is no longer to be taken from datagrams
+	 */
+	private static class Heard {
+		final long seq;		// the sender's number for it; OVER_CONNECTION if drawn or previewed over the connection
+		final long at;		// when heard, in nanos
+
+		Heard(long seq) {
+			this.seq = seq;
+			this.at = System.nanoTime();
+		}
+	}
+
+	public LivePreviews() {
+		ticks = new Timer(RATE > 0 ? 1000 / RATE : 1000, e -> flush());
+		ticks.setInitialDelay(0);
+		expiry = new Timer(EXPIRE_MILLIS / 4, e -> expire());
+	}
+
+	/**
+	 * Sends previews as datagrams from here on, and takes in others'
+	 * @param datagrams The channel
+	 * @param repaint Told where others' previews heard as datagrams have changed or expired
+	 */
+	public void useDatagrams(DragChannel datagrams, Consumer<java.awt.Rectangle> repaint) {
+		this.datagrams = datagrams;
+		this.repaint = repaint;
+	}
+
+	/**
+	 * Starts streaming a shape being drawn here
+	 * @param id The id it will be drawn under
+	 * @param shape The shape as it starts out
+	 */
+	public void start(long id, Shape shape) {
+		if (RATE <= 0) return;
+		this.id = id;
+		drawing = shape;
+		changed = !(shape instanceof Polyline);	// a stroke is worth showing once it has a segment
+		sentSegments = -1;
+		overConnection = datagrams == null;
+		sentAt = 0;
+		ticks.restart();
+	}
+
+	/**
+	 * Notes that the shape being drawn here has changed, to be sent on the next tick
+	 * @param shape The shape as it is now (a freehand stroke is a new Polyline with every point)
+	 */
+	public void changed(Shape shape) {
+		if (id == -1) return;
+		drawing = shape;
+		changed = true;
+	}
+
+	/**
+	 * Stops streaming, as the shape is drawn for real; nothing pending is sent, since the draw replaces it
+	 */
+	public void end() {
+		ticks.stop();
+		id = -1;
+		drawing = null;
+	}
+
+	private void flush() {
+		if (id == -1) return;
+		if (!overConnection) {
+			if (!changed && (sentAt == 0 || System.nanoTime() - sentAt < KEEP_MILLIS * 1000000L)) return;
+			changed = false;
+			if (datagrams.preview(id, drawing.toString())) {
+				sentAt = System.nanoTime();
+				return;
+			}
+			// too big for a datagram (or no channel yet): the connection takes it from here, from the start
+			overConnection = true;
+		}
+		else if (!changed) return;
+		changed = false;
+		if (drawing instanceof Polyline && sentSegments >= 0) {
+			Polyline stroke = (Polyline) drawing;
+			if (stroke.size() <= sentSegments) return;
+			StringBuilder sb = new StringBuilder("extend ").append(id);
+			stroke.appendCoordinates(sb, sentSegments);
+			sentSegments = stroke.size();
+			EditorCommunicator.send(sb.toString());
+		}
+		else {
+			if (drawing instanceof Polyline) sentSegments = ((Polyline) drawing).size();
+			EditorCommunicator.send("preview " + id + " " + drawing);
+		}
+	}
+
+	/**
+	 * Takes in a preview message from the server
+	 * @param msg "preview <id> <shape>", "extend <id> <segments>" or "unpreview <id>", ready to read from the start
+	 * @return The area it changed, or null if none
+	 */
+	public java.awt.Rectangle received(OpTokenizer msg) {
+		msg.skip();
+		long id = msg.nextLong();
+		if (datagrams != null) {
+			heard.put(id, new Heard(OVER_CONNECTION));
+			expiry.start();
+		}
+		Shape before = others.get(id);
+		java.awt.Rectangle dirty = before == null ? null : before.getBounds();
+		if (msg.startsWith("preview ")) {
+			others.put(id, Sketch.parseShape(msg));
+		}
+		else if (msg.startsWith("extend ")) {
+			if (!(before instanceof Polyline)) return null;	// its start never arrived
+			while (msg.hasNext()) {
+				((Polyline) before).append(new Segment(msg.nextInt(), msg.nextInt(), msg.nextInt(), msg.nextInt(), before.getColor()));
+			}
+		}
+		else {
+			others.remove(id);
+			return dirty;
+		}
+		java.awt.Rectangle after = others.get(id).getBounds();
+		if (dirty == null) return after;
+		dirty.add(after);
+		return dirty;
+	}
+
+	/**
+	 * Whether a message from the server is a preview rather than an op or a snapshot line
+	 */
+	public static boolean isPreview(String msg) {
+		return msg.startsWith("preview ") || msg.startsWith("extend ") || msg.startsWith("unpreview ");
+	}
+
+	/**
+	 * Whether a message from the server, as read into a tokenizer, is a preview
+	 */
+	public static boolean isPreview(OpTokenizer msg) {
+		return msg.startsWith("preview ") || msg.startsWith("extend ") || msg.startsWith("unpreview ");
+	}
+
+	/**
+	 * Stops showing someone's preview, as the shape it previewed has been drawn
+	 * @return Where it was, or null if there was none
+	 */
+	public java.awt.Rectangle drawn(long id) {
+		Shape preview = others.remove(id);
+		if (datagrams != null) {
+			heard.put(id, new Heard(OVER_CONNECTION));	// a late datagram mustn't bring it back
+			expiry.start();
+		}
+		return preview == null ? null : preview.getBounds();
+	}
+
+	/**
+	 * Takes in and repaints a preview heard as a datagram, unless a later one of the shape has been
+	 * @param fromClient Who sent it, who must be the one drawing the shape
+	 * @param seq Their number for it
+	 * @param id The shape being drawn
+	 * @param shape What it looks like
+	 */
+	public void heard(int fromClient, long seq, long id, Shape shape) {
+		if (id >>> 32 != fromClient) return;
+		Heard last = heard.get(id);
+		if (last != null && seq <= last.seq) return;
+		heard.put(id, new Heard(seq));
+		expiry.start();
+		Shape before = others.put(id, shape);
+		java.awt.Rectangle dirty = shape.getBounds();
+		if (before != null) dirty.add(before.getBounds());
+		repaint.accept(dirty);
+	}
+
+	/**
+	 * Drops others' datagram previews not heard from for EXPIRE_MILLIS, and forgets shapes done with for as long
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		List<Long> stale = new ArrayList<Long>();
+		for (Map.Entry<Long, Heard> shape : heard.entrySet()) {
+			if (now - shape.getValue().at > EXPIRE_MILLIS * 1000000L) stale.add(shape.getKey());
+		}
+		java.awt.Rectangle dirty = null;
+		for (long id : stale) {
+			if (heard.get(id).seq == OVER_CONNECTION && others.containsKey(id)) continue;	// the server says when it goes
+			heard.remove(id);
+			Shape preview = others.remove(id);
+			if (preview == null) continue;
+			if (dirty == null) dirty = preview.getBounds();
+			else dirty.add(preview.getBounds());
+		}
+		if (heard.isEmpty()) expiry.stop();
+		if (dirty != null) repaint.accept(dirty);
+	}
+
+	/**
+	 * Forgets all of others' previews, e.g. on joining afresh
+	 */
+	public void clear() {
+		others.clear();
+		heard.clear();
+		expiry.stop();
+	}
+
+	/**
+	 * Draws others' shapes being drawn
+	 */
+	public void draw(Graphics g) {
+		for (Shape shape : others.values()) shape.draw(g);
+	}
+}
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One end of a line-oriented connection between an editor and the server, with optional compression.
+ *
+ * Connections start out as plain text lines. Once both sides agree (see the "hello"/"welcome" handshake
+ * in SketchServerCommunicator and EditorCommunicator), both call enableCompression() and switch to frames:
+ * a type byte, a varint length, then the payload. Payloads of at least THRESHOLD bytes go through one
+ * Deflater per connection that is sync-flushed after every write, so its window (seeded with DICTIONARY)
+ * carries over from message to message; smaller payloads are sent as they are, where deflate would not pay.
+ * Either way a payload is one or more complete lines, so readers always see the same lines that were written.
+ *
+ * Lines written to many channels alike, such as the join snapshot, can be encoded once as a Block and written
+ * as they are to each. A Block's deflated form comes from a Deflater of its own, so it goes in a frame of its own
+ * type, around which both ends start their compression state afresh.
+ *
+ * What is read is held to MAX_FRAME, MAX_INFLATED and MAX_LINE; going over any of them is an IOException,
+ * as for a connection gone bad, so the reader drops the connection rather than buffering without end.
+ */
+public class MessageChannel {
+	/** Payloads shorter than this (in bytes) bypass compression; a lone op is longer, and deflates (see CompressionBenchmark) */
+	public static final int THRESHOLD = Integer.getInteger("sketch.compress.threshold", 16);
+
+	/** Longest frame read, on the wire; a bigger one means a broken or hostile peer, and the connection is dropped */
+	public static final int MAX_FRAME = Integer.getInteger("sketch.limit.frame", 16 << 20);
+
+	/** Most bytes one frame may inflate to, so that a small frame can't make us fill memory */
+	public static final int MAX_INFLATED = Integer.getInteger("sketch.limit.inflated", 64 << 20);
+
+	/** Longest line read, in bytes; an import of many shapes is the longest legitimate one */
+	public static final int MAX_LINE = Integer.getInteger("sketch.limit.line", 8 << 20);
+
+	/** Preset dictionary: the words and number shapes that fill snapshots and op streams */
+	private static final byte[] DICTIONARY = ("move recolor delete -16777216 draw segment "
+			+ "polyline rectangle ellipse 0 1 2 3 4 5 6 7 8 9 -1 -2 -3\n").getBytes(StandardCharsets.UTF_8);
+
+	private static final int RAW = 0, DEFLATED = 1, STANDALONE = 2;	// frame types; STANDALONE is deflated from scratch
+
+	private final BufferedInputStream in;
+	private final OutputStream out;
+	private volatile boolean compressed = false;		// framed (and maybe deflated) rather than plain lines
+
+	private Deflater deflater;						// the connection's outbound compression state
+	private Inflater inflater;						// the connection's inbound compression state
+	private byte[] deflateBuf = new byte[8192];
+	private byte[] frameBuf = new byte[8192];		// the frame being read, reused
+
+	private byte[] pending = new byte[8192];		// received bytes not yet handed out as lines
+	private int pendingStart = 0, pendingEnd = 0;
+	private int lineStart, lineEnd;					// where in pending the line last found by nextLine() lies
+
+	private long payloadBytesOut = 0, wireBytesOut = 0, payloadBytesIn = 0, wireBytesIn = 0;
+
+	public MessageChannel(InputStream in, OutputStream out) {
+		this.in = new BufferedInputStream(in);
+		this.out = new BufferedOutputStream(out);
+	}
+
+	/**
+	 * Switches both directions to frames with deflate; call right after the handshake line, on both sides
+	 */
+	public synchronized void enableCompression() {
+		deflater = new Deflater(Deflater.BEST_SPEED, true);
+		deflater.setDictionary(DICTIONARY);
+		inflater = new Inflater(true);
+		inflater.setDictionary(DICTIONARY);
+		compressed = true;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Sends one line (a newline is added) and flushes
+	 */
+	public void writeLine(String line) throws IOException {
+		writeLines(line + "\n");
+	}
+
+	/**
+	 * Sends a block of complete, newline-terminated lines and flushes
+	 */
+	public synchronized void writeLines(String lines) throws IOException {
+		byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+		payloadBytesOut += bytes.length;
+		if (!compressed) {
+			out.write(bytes);
+			wireBytesOut += bytes.length;
+		}
+		else if (bytes.length < THRESHOLD) {
+			writeFrame(RAW, bytes, bytes.length);
+		}
+		else {
+			deflater.setInput(bytes);
+			int n = 0;
+			while (true) {
+				n += deflater.deflate(deflateBuf, n, deflateBuf.length - n, Deflater.SYNC_FLUSH);
+				if (n < deflateBuf.length) break;
+				deflateBuf = java.util.Arrays.copyOf(deflateBuf, deflateBuf.length * 2);
+			}
+			writeFrame(DEFLATED, deflateBuf, n);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Sends a block of lines encoded beforehand, as it is, and flushes
+	 */
+	public synchronized void writeBlock(Block block) throws IOException {
+		payloadBytesOut += block.plain.length;
+		if (!compressed) {
+			out.write(block.plain);
+			wireBytesOut += block.plain.length;
+		}
+		else if (block.plain.length < THRESHOLD) {
+			writeFrame(RAW, block.plain, block.plain.length);
+		}
+		else {
+			byte[] deflated = block.deflated();
+			writeFrame(STANDALONE, deflated, deflated.length);
+			// the other end starts afresh after this frame, so we must too
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Complete lines encoded once, to be written to any number of channels; immutable once made
+	 */
+	public static class Block {
+		private final byte[] plain;			// the lines as UTF-8
+		private byte[] deflated;			// the lines deflated from scratch, made when first needed
+
+		public Block(String lines) {
+			plain = lines.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public int size() {
+			return plain.length;
+		}
+
+		private synchronized byte[] deflated() {
+			if (deflated == null) {
+				Deflater fresh = new Deflater(Deflater.BEST_SPEED, true);
+				fresh.setDictionary(DICTIONARY);
+				fresh.setInput(plain);
+				byte[] buf = new byte[Math.max(64, plain.length / 4)];
+				int n = 0;
+				while (true) {
+					n += fresh.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH);
+					if (n < buf.length) break;
+					buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+				}
+				fresh.end();
+				deflated = java.util.Arrays.copyOf(buf, n);
+			}
+			return deflated;
+		}
+	}
+
+	private void writeFrame(int type, byte[] payload, int length) throws IOException {
+		out.write(type);
+		int header = 1;
+		int v = length;
+		while (v >= 0x80) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+			header++;
+		}
+		out.write(v);
+		out.write(payload, 0, length);
+		wireBytesOut += header + 1 + length;
+	}
+
+	/**
+	 * Receives the next line, without its newline
+	 * @return The line, or null once the other side has closed the connection
+	 */
+	public String readLine() throws IOException {
+		if (!nextLine()) return null;
+		return new String(pending, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Receives the next line straight into a tokenizer, without making a String of it
+	 * @param into The tokenizer to reset onto the line
+	 * @return false once the other side has closed the connection
+	 */
+	public boolean readLine(OpTokenizer into) throws IOException {
+		if (!nextLine()) return false;
+		into.reset(pending, lineStart, lineEnd - lineStart);
+		return true;
+	}
+
+	/**
+	 * Finds the next line in pending, filling it as needed, and sets lineStart and lineEnd around it (without its newline)
+	 * @return false at end of stream with nothing left over
+	 */
+	private boolean nextLine() throws IOException {
+		while (true) {
+			for (int i = pendingStart; i < pendingEnd; i++) {
+				if (pending[i] == '\n') {
+					lineStart = pendingStart;
+					lineEnd = (i > pendingStart && pending[i - 1] == '\r') ? i - 1 : i;
+					pendingStart = i + 1;
+					return true;
+				}
+			}
+			if (pendingEnd - pendingStart > MAX_LINE) throw new IOException("line longer than " + MAX_LINE + " bytes");
+			if (!fill()) {
+				if (pendingStart == pendingEnd) return false;
+				lineStart = pendingStart;
+				lineEnd = pendingEnd;
+				pendingStart = pendingEnd;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Brings more received bytes into pending: up to the next newline when plain
+	 * (never past it, since compression may start right after), or one frame's worth when framed
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException {
+		if (!compressed) {
+			int b;
+			while ((b = in.read()) != -1) {
+				append(b);
+				wireBytesIn++;
+				payloadBytesIn++;
+				if (b == '\n') return true;
+				if (pendingEnd - pendingStart > MAX_LINE) throw new IOException("line longer than " + MAX_LINE + " bytes");
+			}
+			return false;
+		}
+		int type = in.read();
+		if (type == -1) return false;
+		int length = 0, shift = 0, b;
+		do {
+			b = in.read();
+			if (b == -1) throw new EOFException("connection closed inside a frame header");
+			if (shift > 28) throw new IOException("malformed frame length");
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+			wireBytesIn++;
+		} while ((b & 0x80) != 0);
+		if (length < 0 || length > MAX_FRAME) throw new IOException("frame of " + length + " bytes, over " + MAX_FRAME);
+		if (length > frameBuf.length) frameBuf = new byte[Math.max(length, frameBuf.length * 2)];
+		if (in.readNBytes(frameBuf, 0, length) < length) throw new EOFException("connection closed inside a frame");
+		wireBytesIn += 1 + length;
+		if (type == RAW) {
+			ensureRoom(length);
+			System.arraycopy(frameBuf, 0, pending, pendingEnd, length);
+			pendingEnd += length;
+			payloadBytesIn += length;
+		}
+		else if (type == STANDALONE) {
+			restartInflater();
+			inflate(length);
+			restartInflater();
+		}
+		else {
+			inflate(length);
+		}
+		return true;
+	}
+
+	/**
+	 * Inflates the frame in frameBuf onto the end of pending
+	 */
+	private void inflate(int length) throws IOException {
+		inflater.setInput(frameBuf, 0, length);
+		long inflated = 0;
+		try {
+			while (true) {
+				ensureRoom(4096);
+				int room = pending.length - pendingEnd;
+				int n = inflater.inflate(pending, pendingEnd, room);
+				pendingEnd += n;
+				payloadBytesIn += n;
+				inflated += n;
+				if (inflated > MAX_INFLATED) throw new IOException("frame inflates to over " + MAX_INFLATED + " bytes");
+				// output short of the room given means the input is used up; a full buffer may leave more inside
+				if (n < room) break;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("corrupt compressed frame", e);
+		}
+	}
+
+	private void restartInflater() {
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);
+	}
+
+	private void append(int b) {
+		ensureRoom(1);
+		pending[pendingEnd++] = (byte) b;
+	}
+
+	/**
+	 * Makes room for at least n more bytes at the end of pending, first by discarding what has been handed out
+	 */
+	private void ensureRoom(int n) {
+		if (pendingEnd + n <= pending.length) return;
+		System.arraycopy(pending, pendingStart, pending, 0, pendingEnd - pendingStart);
+		pendingEnd -= pendingStart;
+		pendingStart = 0;
+		if (pendingEnd + n > pending.length) {
+			pending = java.util.Arrays.copyOf(pending, Math.max(pending.length * 2, pendingEnd + n));
+		}
+	}
+
+	/**
+	 * Bytes handed to writeLine/writeLines so far
+	 */
+	public synchronized long getPayloadBytesOut() {
+		return payloadBytesOut;
+	}
+
+	/**
+	 * Bytes actually written to the connection so far, including frame headers
+	 */
+	public synchronized long getWireBytesOut() {
+		return wireBytesOut;
+	}
+
+	public long getPayloadBytesIn() {
+		return payloadBytesIn;
+	}
+
+	public long getWireBytesIn() {
+		return wireBytesIn;
+	}
+
+	public void close() throws IOException {
+		in.close();
+		out.close();
+		if (deflater != null) deflater.end();
+		if (inflater != null) inflater.end();
+	}
+}
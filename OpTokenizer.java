@@ -0,0 +1,241 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the words and numbers of one protocol line in place, without allocating.
+ *
+ * A tokenizer is reset onto a line, copied into a buffer it keeps and reuses, and then read front to back:
+ * numbers are parsed straight from the bytes, and words are matched against a table (such as OPS or SHAPES)
+ * to give a small code to dispatch on, rather than being cut out as Strings and compared one by one.
+ * Tokens are separated by single spaces, as everything in the protocol is written.
+ * Used by the server to handle clients' messages and by editors to decode the server's; each thread needs its own.
+ */
+public class OpTokenizer {
+	public static final int DRAW = 0, MOVE = 1, RECOLOR = 2, DELETE = 3, IMPORT = 4;	// op codes
+	public static final String[] OPS = {"draw", "move", "recolor", "delete", "import"};	// op words, by code
+	public static final int ELLIPSE = 0, RECTANGLE = 1, SEGMENT = 2, POLYLINE = 3;		// shape codes
+	public static final String[] SHAPES = {"ellipse", "rectangle", "segment", "polyline"};	// shape words, by code
+
+	private static final byte[][] OP_BYTES = bytes(OPS), SHAPE_BYTES = bytes(SHAPES);
+
+	private byte[] line = new byte[256];		// the current line, reused from line to line
+	private int length = 0;						// bytes of it in use
+	private int pos = 0;						// start of the next token
+	private long[] ids = new long[16];			// the last list of ids read, reused
+	private int idCount = 0;
+
+	private static byte[][] bytes(String[] words) {
+		byte[][] bytes = new byte[words.length][];
+		for (int i = 0; i < words.length; i++) bytes[i] = words[i].getBytes(StandardCharsets.US_ASCII);
+		return bytes;
+	}
+
+	/**
+	 * Starts reading a line held as a String; anything outside ASCII becomes '?', which no token accepts
+	 * @return This tokenizer
+	 */
+	public OpTokenizer reset(String s) {
+		ensureCapacity(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			line[i] = c < 0x80 ? (byte) c : (byte) '?';
+		}
+		length = s.length();
+		pos = 0;
+		return this;
+	}
+
+	/**
+	 * Starts reading a line held as bytes, e.g. straight from a MessageChannel's buffer
+	 * @return This tokenizer
+	 */
+	public OpTokenizer reset(byte[] bytes, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, line, 0, count);
+		length = count;
+		pos = 0;
+		return this;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > line.length) line = new byte[Math.max(n, line.length * 2)];
+	}
+
+	/**
+	 * Where the next token starts, to come back to with seek() or to cut the rest of the line from
+	 */
+	public int position() {
+		return pos;
+	}
+
+	public void seek(int position) {
+		pos = position;
+	}
+
+	public boolean hasNext() {
+		return pos < length;
+	}
+
+	/**
+	 * Whether the line starts with the given ASCII text, wherever the position is
+	 */
+	public boolean startsWith(String prefix) {
+		if (prefix.length() > length) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line[i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A copy of the line's bytes, e.g. to hand it to another thread to reset its own tokenizer onto
+	 */
+	public byte[] copyLine() {
+		return java.util.Arrays.copyOf(line, length);
+	}
+
+	/**
+	 * Whether the next token starts like a number
+	 */
+	public boolean atNumber() {
+		if (pos >= length) return false;
+		byte b = line[pos];
+		return (b >= '0' && b <= '9') || (b == '-' && pos + 1 < length && line[pos + 1] >= '0' && line[pos + 1] <= '9');
+	}
+
+	/**
+	 * Whether the next token starts like a word
+	 */
+	public boolean atWord() {
+		if (pos >= length) return false;
+		byte b = line[pos];
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+
+	/**
+	 * Counts the tokens from here to the end of the line, e.g. to size a polyline
+	 */
+	public int remaining() {
+		if (pos >= length) return 0;
+		int n = 1;
+		for (int i = pos; i < length; i++) {
+			if (line[i] == ' ') n++;
+		}
+		return n;
+	}
+
+	public int nextInt() {
+		long v = nextLong();
+		if (v != (int) v) throw new NumberFormatException("int out of range");
+		return (int) v;
+	}
+
+	public long nextLong() {
+		long v = number();
+		endToken();
+		return v;
+	}
+
+	/**
+	 * Parses the number at pos, stopping at the first byte that is not a digit
+	 */
+	private long number() {
+		boolean negative = pos < length && line[pos] == '-';
+		if (negative) pos++;
+		int start = pos;
+		long v = 0;
+		while (pos < length && line[pos] >= '0' && line[pos] <= '9') {
+			if (v > (Long.MAX_VALUE - 9) / 10) throw new NumberFormatException("number too long");
+			v = v * 10 + (line[pos++] - '0');
+		}
+		if (pos == start) throw new NumberFormatException("expected a number at " + start);
+		return negative ? -v : v;
+	}
+
+	/**
+	 * Steps over the space after a token, insisting that the token ended there
+	 */
+	private void endToken() {
+		if (pos < length) {
+			if (line[pos] != ' ') throw new IllegalArgumentException("unexpected character at " + pos);
+			pos++;
+		}
+	}
+
+	/**
+	 * Reads an ID or a comma-separated list of them into a reused array
+	 * @return How many there were; get them with id(i)
+	 */
+	public int nextIds() {
+		idCount = 0;
+		while (true) {
+			if (idCount == ids.length) ids = java.util.Arrays.copyOf(ids, ids.length * 2);
+			ids[idCount++] = number();
+			if (pos < length && line[pos] == ',') pos++;
+			else break;
+		}
+		endToken();
+		return idCount;
+	}
+
+	/**
+	 * One of the IDs read by the last nextIds()
+	 */
+	public long id(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * A copy of the IDs read by the last nextIds(), for batch ops that keep them
+	 */
+	public long[] copyIds() {
+		return java.util.Arrays.copyOf(ids, idCount);
+	}
+
+	/**
+	 * Reads the op word
+	 * @return Its code (DRAW, MOVE, RECOLOR, DELETE or IMPORT)
+	 * @throws IllegalArgumentException if it is not an op
+	 */
+	public int nextOp() {
+		return nextCode(OP_BYTES, "op");
+	}
+
+	/**
+	 * Reads the shape word
+	 * @return Its code (ELLIPSE, RECTANGLE, SEGMENT or POLYLINE)
+	 * @throws IllegalArgumentException if it is not a shape
+	 */
+	public int nextShape() {
+		return nextCode(SHAPE_BYTES, "shape");
+	}
+
+	private int nextCode(byte[][] words, String what) {
+		int end = pos;
+		while (end < length && line[end] != ' ') end++;
+		for (int code = 0; code < words.length; code++) {
+			byte[] word = words[code];
+			if (word.length == end - pos && java.util.Arrays.equals(line, pos, end, word, 0, word.length)) {
+				pos = end;
+				endToken();
+				return code;
+			}
+		}
+		throw new IllegalArgumentException("unknown " + what + " at " + pos);
+	}
+
+	/**
+	 * Skips the next token, whatever it is
+	 */
+	public void skip() {
+		while (pos < length && line[pos] != ' ') pos++;
+		endToken();
+	}
+
+	/**
+	 * The line as a String, e.g. for error messages
+	 */
+	@Override
+	public String toString() {
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+}
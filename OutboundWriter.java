@@ -0,0 +1,142 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Writes an editor's messages to the server on a thread of its own, so the Swing thread never waits on the network.
+ *
+ * send() only puts the message on a bounded queue. The writer takes whatever has queued up since its last write,
+ * up to MAX_BATCH messages, and writes it as one block with one flush (and, when compressed, one frame).
+ * A slow link therefore means fewer, bigger writes. send() never waits, as it is called on the Swing thread (with the
+ * replica locked): if the queue is full the link is taken to be stuck, which is counted as a stall, and the connection
+ * is dropped, so the editor reconnects and resumes, sending again whatever ops the server didn't get.
+ * Queue depth, batching and stalls are visible over JMX as "Editor:type=Outbound".
+ */
+public class OutboundWriter extends Thread implements OutboundWriterMBean {
+	private static final int CAPACITY = Integer.getInteger("sketch.outbound.capacity", 4096);	// messages queued at most
+	private static final int MAX_BATCH = 256;			// messages per write at most
+
+	private final MessageChannel channel;
+	private final Closeable connection;					// closed to give up on a stuck link
+	private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(CAPACITY);
+	private final Histogram depth = new Histogram();	// queue depth seen by each send
+	private final LongAdder messages = new LongAdder(), batches = new LongAdder(), stalls = new LongAdder();
+	private volatile boolean failed = false;			// the connection is gone, so sends are dropped
+
+	/**
+	 * @param channel Where to write
+	 * @param connection What the channel runs over, closed if the queue overflows
+	 */
+	public OutboundWriter(MessageChannel channel, Closeable connection) {
+		super("outbound writer");
+		this.channel = channel;
+		this.connection = connection;
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues a message for the server, without waiting; if the queue is full, drops the connection instead
+	 * @param msg One or more lines
+	 */
+	public void send(String msg) {
+		if (failed) return;
+		depth.record(queue.size());
+		if (queue.offer(msg)) return;
+		stalls.increment();
+		System.err.println("outbound queue full; dropping the connection");
+		failed = true;
+		queue.clear();
+		interrupt();
+		try {
+			connection.close();
+		}
+		catch (IOException e) {
+			// gone anyway
+		}
+	}
+
+	public void run() {
+		List<String> batch = new ArrayList<String>(MAX_BATCH);
+		StringBuilder block = new StringBuilder();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (String msg : batch) block.append(msg).append('\n');
+				channel.writeLines(block.toString());
+				messages.add(batch.size());
+				batches.increment();
+				batch.clear();
+				block.setLength(0);
+			}
+		}
+		catch (IOException e) {
+			System.err.println("couldn't send: " + e.getMessage());
+		}
+		catch (InterruptedException e) {
+			// shutting down
+		}
+		finally {
+			failed = true;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Registers over JMX, in place of the writer for any earlier connection
+	 */
+	public void registerMBean() throws JMException {
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("Editor:type=Outbound");
+		if (beans.isRegistered(name)) beans.unregisterMBean(name);
+		beans.registerMBean(this, name);
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return CAPACITY;
+	}
+
+	@Override
+	public long getQueueDepthP99() {
+		return depth.valueAtPercentile(99);
+	}
+
+	@Override
+	public long getQueueDepthMax() {
+		return depth.getMax();
+	}
+
+	@Override
+	public long getMessagesSent() {
+		return messages.sum();
+	}
+
+	@Override
+	public long getWrites() {
+		return batches.sum();
+	}
+
+	@Override
+	public double getMessagesPerWrite() {
+		long writes = batches.sum();
+		return writes == 0 ? 0 : (double) messages.sum() / writes;
+	}
+
+	@Override
+	public long getStalls() {
+		return stalls.sum();
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * JMX view of an editor's OutboundWriter; a depth that keeps growing, or any stalls, mean the editor is outrunning its link
+ */
+public interface OutboundWriterMBean {
+	public int getQueueDepth();
+	public int getQueueCapacity();
+	public long getQueueDepthP99();
+	public long getQueueDepthMax();
+
+	public long getMessagesSent();
+	public long getWrites();
+	public double getMessagesPerWrite();
+
+	public long getStalls();
+}
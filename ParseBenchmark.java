@@ -0,0 +1,119 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares decoding the server's messages by splitting Strings, as editors used to, with OpTokenizer,
+ * on a stream shaped like the real thing: mostly moves, some recolors and batch moves, the occasional draw.
+ * Messages start out as bytes, as MessageChannel holds them. Reports messages decoded per second and bytes
+ * allocated per message, for decoding alone and for decoding and applying to a Sketch.
+ *
+ * Run with: java ParseBenchmark [messages]
+ */
+public class ParseBenchmark {
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static long sink = 0;		// everything decoded is summed in here, so none of it is optimized away
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int shapes = 10000;
+		Random random = new Random(42);
+		byte[][] messages = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			String op;
+			long id = Sketch.id(1, random.nextInt(shapes));
+			int kind = random.nextInt(100);
+			if (kind < 85) op = "move " + id + " " + (random.nextInt(7) - 3) + " " + (random.nextInt(7) - 3);
+			else if (kind < 93) op = "recolor " + id + " " + random.nextInt(0xffffff);
+			else if (kind < 98) op = "move " + id + "," + (id + 1) + "," + (id + 2) + " 5 5";
+			else op = "draw " + Sketch.id(2, i) + " ellipse 10 10 40 40 -16777216";
+			messages[i] = ((i + 1) + " " + (1 + i % 4) + " " + i + " " + op).getBytes(StandardCharsets.UTF_8);
+		}
+
+		Sketch sketch = new Sketch();
+		for (int i = 0; i < shapes + 2; i++) sketch.add(Sketch.id(1, i), new Rectangle(i, i, i + 10, i + 10, java.awt.Color.black));
+
+		System.out.println("messages=" + count);
+		for (int round = 0; round < 3; round++) { // the first rounds warm up the JIT
+			boolean last = round == 2;
+			run("split", messages, last, () -> { for (byte[] m : messages) split(m); });
+			run("tokenizer", messages, last, () -> {
+				OpTokenizer tokens = new OpTokenizer();
+				for (byte[] m : messages) tokenize(tokens.reset(m, 0, m.length));
+			});
+			run("tokenizer+apply", messages, last, () -> {
+				OpTokenizer tokens = new OpTokenizer();
+				for (byte[] m : messages) {
+					tokens.reset(m, 0, m.length);
+					sink += tokens.nextLong() + tokens.nextInt() + tokens.nextInt();
+					sink += sketch.apply(tokens);
+				}
+			});
+		}
+		if (sink == 42) System.out.println();	// keep sink live
+	}
+
+	private static void run(String name, byte[][] messages, boolean print, Runnable decode) {
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		decode.run();
+		long nanos = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		if (print) {
+			System.out.printf("%-16s %,12.0f msgs/s  %8.1f bytes allocated/msg%n",
+					name, messages.length / (nanos / 1e9), (double) allocated / messages.length);
+		}
+	}
+
+	/**
+	 * Decodes a message the old way: into a String, split into words, each parsed or compared as a String
+	 */
+	private static void split(byte[] m) {
+		String[] words = new String(m, StandardCharsets.UTF_8).split(" ");
+		sink += Long.parseLong(words[0]) + Integer.parseInt(words[1]) + Integer.parseInt(words[2]);
+		switch (words[3]) {
+			case "draw":
+				sink += Long.parseLong(words[4]) + words[5].length();
+				for (int i = 6; i < words.length; i++) sink += Integer.parseInt(words[i]);
+				break;
+			case "move":
+				for (String id : words[4].split(",")) sink += Long.parseLong(id);
+				sink += Integer.parseInt(words[5]) + Integer.parseInt(words[6]);
+				break;
+			case "recolor":
+				sink += Long.parseLong(words[4]) + Integer.parseInt(words[5]);
+				break;
+			case "delete":
+				for (String id : words[4].split(",")) sink += Long.parseLong(id);
+				break;
+		}
+	}
+
+	/**
+	 * Decodes the same fields with the tokenizer
+	 */
+	private static void tokenize(OpTokenizer tokens) {
+		sink += tokens.nextLong() + tokens.nextInt() + tokens.nextInt();
+		switch (tokens.nextOp()) {
+			case OpTokenizer.DRAW:
+				sink += tokens.nextLong() + tokens.nextShape();
+				while (tokens.hasNext()) sink += tokens.nextInt();
+				break;
+			case OpTokenizer.MOVE:
+				int n = tokens.nextIds();
+				for (int i = 0; i < n; i++) sink += tokens.id(i);
+				sink += tokens.nextInt() + tokens.nextInt();
+				break;
+			case OpTokenizer.RECOLOR:
+				sink += tokens.nextIds() + tokens.nextInt();
+				break;
+			case OpTokenizer.DELETE:
+				n = tokens.nextIds();
+				for (int i = 0; i < n; i++) sink += tokens.id(i);
+				break;
+		}
+	}
+}
@@ -23,6 +23,8 @@ public class Polyline implements Shape {
 		this.x1 = x1; this.x2 = x1;    // Start and end point are the same initially
 		this.y1 = y1; this.y2 = y1;    // Start and end point are the same initially
 		this.color = color;
+		overallList = new ArrayList<Segment>();
+		overallList.add(new Segment(x1, y1, color));
 	}
 
 	/**
@@ -35,6 +37,33 @@ public class Polyline implements Shape {
 		color = c;
 	}
 
+	/**
+	 * Adds a segment to the end, e.g. as a stroke being drawn elsewhere grows
+	 * @param segment The segment, which takes on the polyline's color
+	 */
+	public void append(Segment segment) {
+		segment.setColor(color);
+		overallList.add(segment);
+	}
+
+	/**
+	 * The number of segments so far
+	 */
+	public int size() {
+		return overallList.size();
+	}
+
+	/**
+	 * Appends " x1 y1 x2 y2" for each segment from the given one on, to send just what was added since
+	 * @param sb The builder to append to
+	 * @param from The first segment to append
+	 */
+	void appendCoordinates(StringBuilder sb, int from) {
+		for (int i = from; i < overallList.size(); i++) {
+			overallList.get(i).appendCoordinates(sb);
+		}
+	}
+
 	/**
 	 * Moves the polyline by a given amount in the x and y directions.
 	 * @param dx The change in x-coordinate
@@ -97,11 +126,30 @@ public class Polyline implements Shape {
 	}
 
 	/**
-	 * Returns a string representation of the polyline.
+	 * Gets the bounding box of the polyline, enclosing all of its segments.
+	 * @return The bounding box
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		java.awt.Rectangle bounds = null;
+		for (Segment segment : overallList) {
+			if (bounds == null) bounds = segment.getBounds();
+			else bounds.add(segment.getBounds());
+		}
+		return bounds != null ? bounds : new java.awt.Rectangle(x1, y1, 1, 1);
+	}
+
+	/**
+	 * Returns a string representation of the polyline:
+	 * the endpoints of each segment in turn, followed by the color.
 	 * @return A string representing the polyline
 	 */
 	@Override
 	public String toString() {
-		return "polyline " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + color.getRGB();
+		StringBuilder sb = new StringBuilder("polyline");
+		for (Segment segment : overallList) {
+			segment.appendCoordinates(sb);
+		}
+		return sb.append(" ").append(color.getRGB()).toString();
 	}
 }
@@ -0,0 +1,493 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An editor's replica of the server's sketch, with its own edits shown before the server confirms them.
+ *
+ * The confirmed sketch holds exactly the ops the server has sequenced, applied in its order.
+ * Every local op gets the next client sequence number, is applied to the shown sketch straight away,
+ * and waits in the pending queue until the server passes it back with that number.
+ * The shown sketch is therefore always confirmed + pending; when a server op would break that
+ * (someone else's op arriving while ours are pending), our changes are taken back off shown, the op applied, and
+ * what is still pending put back on by settle(), which the editor calls once it has confirmed everything that came in
+ * together, so a burst of others' ops costs one take-back and one replay rather than one per op.
+ * Each change made to shown beyond confirmed is logged with how to undo it, so taking them back touches just
+ * the shapes they touched rather than copying the sketch.
+ *
+ * Ops made before joining, or while disconnected from a session that couldn't be resumed, are kept and carried
+ * into the new session: shapes they drew get fresh IDs in the new client's range, the ops that name them are
+ * rewritten to match, and they are pending again, to be sent once the welcome is in.
+ *
+ * Shapes being dragged, here or (as heard over a DragChannel) by others, are shown moved as well, but the moves
+ * are neither pending nor sent as ops until the drag ends: shown is confirmed + pending + drags. A drag is known by
+ * its first shape and only ever says how far it has gone in all, so a newer update simply replaces an older one.
+ */
+public class PredictedSketch {
+	private Sketch confirmed = new Sketch();							// the server's state, as of lastSeq
+	private volatile Sketch shown = new Sketch();						// confirmed + pending, what the editor draws
+	private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();	// local ops not yet sequenced, oldest first
+	private int clientId = -1;											// as given by the server in its welcome
+	private int clientSeq = 0;											// last sequence number used for a local op
+	private int shapeCounter = 0;										// shapes drawn here so far, for their ids
+	private long lastSeq = 0;											// last server sequence number applied
+	private long rebuilds = 0;											// how often our changes were taken off shown to apply another's op
+	private final OpTokenizer ops = new OpTokenizer();					// for local ops and replaying them, under this object's lock
+	private final Map<Long, Drag> drags = new HashMap<Long, Drag>();	// drags under way, by their first shape
+	private final ArrayList<Undo> undo = new ArrayList<Undo>();			// how to take back each change shown has beyond confirmed, oldest first
+	private final ArrayList<String> settled = new ArrayList<String>();	// our ops confirmed as predicted while undo was kept, already in shown
+	private boolean unwound = false;									// shown is just confirmed, its pending ops and drags awaiting settle()
+	private java.awt.Rectangle moved = null;							// where shown changed in taking our changes back and putting them on
+	private final Map<Long, Long> renumbered = new HashMap<Long, Long>();	// shape IDs picked before joining -> the ones they were given
+	private static final int MAX_UNDO = 4096;							// changes logged before they are taken back and put on afresh
+
+	/**
+	 * A local op waiting for the server
+	 */
+	private static class Pending {
+		final int clientSeq;
+		final String op;
+
+		Pending(int clientSeq, String op) {
+			this.clientSeq = clientSeq;
+			this.op = op;
+		}
+	}
+
+	/**
+	 * A change made to shown beyond confirmed, and how to take it back
+	 */
+	private static class Undo {
+		final long[] ids;			// the shapes it touched
+		final Runnable action;		// takes it back, given shown as it was just after
+
+		Undo(long[] ids, Runnable action) {
+			this.ids = ids;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * Shapes shown moved by a drag that hasn't been committed
+	 */
+	private static class Drag {
+		final int clientId;		// who is dragging
+		final long seq;			// their number for this update
+		final long[] ids;
+		final int dx, dy;		// how far from where they were when the drag started
+		final long at;			// when heard, in nanos
+
+		Drag(int clientId, long seq, long[] ids, int dx, int dy) {
+			this.clientId = clientId;
+			this.seq = seq;
+			this.ids = ids;
+			this.dx = dx;
+			this.dy = dy;
+			this.at = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The sketch to draw and hit-test: the server's state plus our own pending ops
+	 */
+	public Sketch getShown() {
+		return shown;
+	}
+
+	/**
+	 * Records who we are and where the server's sequence stood when we joined, starting over from nothing
+	 * for the snapshot that follows; ops still pending from before (e.g. made while reconnecting) are carried over,
+	 * with the shapes they drew renumbered into our new range, and pending again under new client sequence numbers
+	 * @return The carried-over ops, "<clientSeq> <op>", to send once the welcome is in
+	 */
+	public synchronized List<String> joined(int clientId, long seq) {
+		this.clientId = clientId;
+		this.lastSeq = seq;
+		confirmed = new Sketch();
+		shown = new Sketch();
+		drags.clear();
+		undo.clear();
+		settled.clear();
+		unwound = false;
+		moved = null;
+		renumbered.clear();
+		List<String> carried = new ArrayList<String>();
+		for (Pending p : pending) {
+			ops.reset(p.op);
+			// none of them was sequenced, so every shape they drew is new
+			if (ops.nextOp() == OpTokenizer.DRAW && ops.atNumber()) renumbered.putIfAbsent(ops.nextLong(), newShapeId());
+			carried.add(renumber(p.op));
+		}
+		pending.clear();
+		List<String> sends = new ArrayList<String>();
+		for (String op : carried) {
+			try {
+				predict(op);
+			}
+			catch (RuntimeException e) {
+				continue;
+			}
+			pending.addLast(new Pending(++clientSeq, op));
+			sends.add(clientSeq + " " + op);
+		}
+		return sends;
+	}
+
+	/**
+	 * Who we are, or -1 before joining
+	 */
+	public synchronized int getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * The local ops not yet sequenced that the server has not seen either, to send again after reconnecting
+	 * @param after The last client sequence number the server handled
+	 * @return The ops as sent, "<clientSeq> <op>", oldest first
+	 */
+	public synchronized List<String> pendingAfter(int after) {
+		List<String> ops = new ArrayList<String>();
+		for (Pending p : pending) {
+			if (p.clientSeq > after) ops.add(p.clientSeq + " " + p.op);
+		}
+		return ops;
+	}
+
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public synchronized long getRebuilds() {
+		return rebuilds;
+	}
+
+	/**
+	 * Picks the id for a shape drawn here, from this client's own range so no one else can pick it
+	 */
+	public synchronized long newShapeId() {
+		return Sketch.id(clientId, ++shapeCounter);
+	}
+
+	/**
+	 * Applies a local op straight away and queues it until the server confirms it
+	 * @param op The op, e.g. "move 3 1 -2"; shape IDs picked before joining are put into our range
+	 * @return The message to send: "<clientSeq> <op>", with the op as applied
+	 */
+	public synchronized String local(String op) {
+		if (unwound) replay();
+		if (clientId >= 0) {
+			ops.reset(op);
+			if (ops.nextOp() == OpTokenizer.DRAW && ops.atNumber()) {
+				long id = ops.nextLong();
+				// a new shape with an id picked before joining; redrawing a shape someone else drew keeps theirs
+				if ((int) (id >> 32) != clientId && !renumbered.containsKey(id)
+						&& shown.getShapeById(id) == null && confirmed.getShapeById(id) == null) renumbered.put(id, newShapeId());
+			}
+			if (!renumbered.isEmpty()) op = renumber(op);
+		}
+		predict(op);
+		pending.addLast(new Pending(++clientSeq, op));
+		if (undo.size() > MAX_UNDO) compact();
+		return clientSeq + " " + op;
+	}
+
+	/**
+	 * An op with the shape IDs picked before joining replaced by the ones they were given
+	 */
+	private String renumber(String op) {
+		String[] parts = op.split(" ", 3);
+		if (parts.length < 2 || parts[1].isEmpty() || !(Character.isDigit(parts[1].charAt(0)) || parts[1].charAt(0) == '-')) return op;
+		long[] ids = Sketch.ids(parts[1]);
+		List<Long> mapped = new ArrayList<Long>(ids.length);
+		boolean changed = false;
+		for (long id : ids) {
+			Long to = renumbered.get(id);
+			changed |= to != null;
+			mapped.add(to != null ? to : id);
+		}
+		if (!changed) return op;
+		return parts[0] + " " + Sketch.idList(mapped) + (parts.length > 2 ? " " + parts[2] : "");
+	}
+
+	/**
+	 * Applies a snapshot line ("draw <id> <shape>") sent on joining, before any sequenced op
+	 * @param op The line, positioned at "draw"
+	 * @return The id of the shape drawn
+	 */
+	public synchronized long snapshot(OpTokenizer op) {
+		int verb = op.position();
+		long id = confirmed.apply(op);
+		op.seek(verb);
+		// below anything carried over from before joining, which settle() puts back on top
+		if (!undo.isEmpty()) unwind();
+		shown.apply(op);
+		return id;
+	}
+
+	/**
+	 * Applies an op sequenced by the server, reconciling our pending ops with it
+	 * @param seq The server's sequence number for the op
+	 * @param fromClient The client that sent the op
+	 * @param fromClientSeq That client's sequence number for the op
+	 * @param op The message, positioned at the op's verb
+	 * @return The id of the shape affected
+	 */
+	public synchronized long confirm(long seq, int fromClient, int fromClientSeq, OpTokenizer op) {
+		if (seq <= lastSeq) return -1; // already have it
+		lastSeq = seq;
+		int verb = op.position();
+		long id = confirmed.apply(op);
+		op.seek(verb);
+
+		String predicted = null;
+		if (fromClient == clientId) {
+			// our own op back; shown already includes it, unless the server dropped some of our earlier ops
+			Pending head = pending.pollFirst();
+			if (head != null && head.clientSeq == fromClientSeq) predicted = head.op;
+			while (!pending.isEmpty() && pending.peekFirst().clientSeq <= fromClientSeq) {
+				pending.removeFirst();
+			}
+		}
+		if (!drags.isEmpty()) dropDragsBy(fromClient, op);
+		if (predicted != null && !unwound) {
+			settled.add(predicted);
+		}
+		else {
+			// anything else goes on shown as it goes on confirmed, so first take off what we have put on top
+			if (!undo.isEmpty()) unwind();
+			op.seek(verb);
+			shown.apply(op);
+		}
+		trim();
+		return id;
+	}
+
+	/**
+	 * Puts our pending ops and the drags back on shown after confirm() took them off to apply another's op;
+	 * to be called once everything received together has been confirmed
+	 * @return Where shown changed since the last call, in taking them off and putting them back; null if nowhere
+	 */
+	public synchronized java.awt.Rectangle settle() {
+		if (unwound) replay();
+		java.awt.Rectangle changed = moved;
+		moved = null;
+		return changed;
+	}
+
+	/**
+	 * Shows a drag as far as it has gone, in place of any earlier update of it
+	 * @param fromClient Who is dragging
+	 * @param seq Their number for this update, which goes up with each one they send
+	 * @param ids The shapes dragged, the first one naming the drag
+	 * @param dx How far from where they were when the drag started
+	 * @param dy How far from where they were when the drag started
+	 * @return Whether this changed anything; false for an update older than one already shown
+	 */
+	public synchronized boolean dragged(int fromClient, long seq, long[] ids, int dx, int dy) {
+		long first = ids[0];
+		Drag before = drags.get(first);
+		if (before != null && before.clientId == fromClient && seq <= before.seq) return false;
+		if (before != null && !unwound) shift(before.ids, -before.dx, -before.dy);
+		// only shapes there now, so that taking the drag back later moves just what it moved
+		int present = 0;
+		for (long id : ids) {
+			if (shown.getShapeById(id) != null) present++;
+		}
+		if (present < ids.length) {
+			long[] there = new long[present];
+			present = 0;
+			for (long id : ids) {
+				if (shown.getShapeById(id) != null) there[present++] = id;
+			}
+			ids = there;
+		}
+		if (!unwound) shift(ids, dx, dy);
+		drags.put(first, new Drag(fromClient, seq, ids, dx, dy));
+		if (undo.size() > MAX_UNDO) compact();
+		return true;
+	}
+
+	/**
+	 * Stops showing a drag, e.g. as it ends and its move is committed
+	 * @param first The drag's first shape
+	 */
+	public synchronized void dropDrag(long first) {
+		undrag(first);
+		trim();
+	}
+
+	private void undrag(long first) {
+		Drag drag = drags.remove(first);
+		if (drag != null && !unwound) shift(drag.ids, -drag.dx, -drag.dy);
+	}
+
+	/**
+	 * Stops showing others' drags not heard from for a while, whose end went missing
+	 * @return Whether any were dropped
+	 */
+	public synchronized boolean expireDrags(long olderThanNanos) {
+		long now = System.nanoTime();
+		List<Long> stale = new ArrayList<Long>();
+		for (Map.Entry<Long, Drag> drag : drags.entrySet()) {
+			if (drag.getValue().clientId != clientId && now - drag.getValue().at > olderThanNanos) stale.add(drag.getKey());
+		}
+		for (long first : stale) undrag(first);
+		trim();
+		return !stale.isEmpty();
+	}
+
+	/**
+	 * Drops the drags by a client of the shapes its op (at the tokenizer's position, left there) touches:
+	 * the op is how its drag ended
+	 */
+	private void dropDragsBy(int fromClient, OpTokenizer op) {
+		int verb = op.position();
+		int code = op.nextOp();
+		if (code != OpTokenizer.DRAW && code != OpTokenizer.IMPORT) {
+			int n = op.nextIds();
+			for (int i = 0; i < n; i++) {
+				Drag drag = drags.get(op.id(i));
+				if (drag != null && drag.clientId == fromClient) undrag(op.id(i));
+			}
+		}
+		op.seek(verb);
+	}
+
+	/**
+	 * Applies a local op to shown, logging how to take it back
+	 */
+	private void predict(String op) {
+		ops.reset(op);
+		int code = ops.nextOp();
+		if (code == OpTokenizer.DRAW) {
+			if (ops.atWord()) {
+				long id = shown.add(Sketch.parseShape(ops));
+				undo.add(new Undo(new long[] {id}, () -> shown.delete(id)));
+				return;
+			}
+			long id = ops.nextLong();
+			Shape s = Sketch.parseShape(ops);
+			Shape before = shown.getShapeById(id);
+			shown.add(id, s);
+			undo.add(new Undo(new long[] {id}, before == null ? () -> shown.delete(id) : () -> shown.add(id, before)));
+			return;
+		}
+		if (code == OpTokenizer.IMPORT) throw new IllegalArgumentException("import is not an editor op");
+		ops.nextIds();
+		long[] ids = ops.copyIds();
+		if (code == OpTokenizer.MOVE) {
+			int dx = ops.nextInt(), dy = ops.nextInt();
+			shift(ids, dx, dy);
+		}
+		else if (code == OpTokenizer.RECOLOR) {
+			java.awt.Color color = new java.awt.Color(ops.nextInt());
+			java.awt.Color[] before = new java.awt.Color[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				Shape s = shown.getShapeById(ids[i]);
+				if (s != null) before[i] = s.getColor();
+			}
+			shown.recolor(ids, color);
+			undo.add(new Undo(ids, () -> {
+				for (int i = 0; i < ids.length; i++) {
+					if (before[i] != null) shown.recolor(ids[i], before[i]);
+				}
+			}));
+		}
+		else {
+			// put back where each stood in the stacking order
+			Shape[] before = new Shape[ids.length];
+			long[] zs = new long[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				before[i] = shown.getShapeById(ids[i]);
+				if (before[i] != null) zs[i] = shown.idZ.get(ids[i]);
+			}
+			shown.delete(ids);
+			undo.add(new Undo(ids, () -> {
+				for (int i = 0; i < ids.length; i++) {
+					if (before[i] != null) shown.add(ids[i], before[i], zs[i]);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Moves shapes on shown, logging how to take it back
+	 */
+	private void shift(long[] ids, int dx, int dy) {
+		shown.move(ids, dx, dy);
+		undo.add(new Undo(ids, () -> shown.move(ids, -dx, -dy)));
+	}
+
+	/**
+	 * Takes every logged change back off shown, newest first, then reapplies our ops confirmed meanwhile,
+	 * leaving shown equal to confirmed
+	 */
+	private void unwind() {
+		for (int i = undo.size() - 1; i >= 0; i--) {
+			Undo u = undo.get(i);
+			touched(u.ids);
+			u.action.run();
+			touched(u.ids);
+		}
+		undo.clear();
+		for (String op : settled) shown.apply(ops.reset(op));
+		settled.clear();
+		unwound = true;
+		rebuilds++;
+	}
+
+	/**
+	 * Puts what is still pending, then the drags, back on shown after unwind()
+	 */
+	private void replay() {
+		unwound = false;
+		for (Pending p : pending) {
+			try {
+				predict(p.op);
+			}
+			catch (RuntimeException e) {
+				// the op no longer applies (its shape was deleted meanwhile); the server will drop it too
+			}
+		}
+		for (Drag d : drags.values()) shift(d.ids, d.dx, d.dy);
+		for (Undo u : undo) touched(u.ids);
+	}
+
+	/**
+	 * Takes the logged changes back and puts them on afresh, so the log holds just what is pending and being dragged
+	 */
+	private void compact() {
+		unwind();
+		replay();
+	}
+
+	/**
+	 * Forgets the log once shown is back to confirmed, with nothing pending or dragged
+	 */
+	private void trim() {
+		if (pending.isEmpty() && drags.isEmpty()) {
+			undo.clear();
+			settled.clear();
+			unwound = false;
+		}
+	}
+
+	/**
+	 * Adds where shapes now are on shown to what settle() reports
+	 */
+	private void touched(long[] ids) {
+		for (long id : ids) {
+			Shape s = shown.getShapeById(id);
+			java.awt.Rectangle bounds = s == null ? null : s.getBounds();
+			if (bounds == null) continue;
+			if (moved == null) moved = bounds;
+			else moved.add(bounds);
+		}
+	}
+}
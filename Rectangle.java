@@ -12,14 +12,14 @@ public class Rectangle implements Shape {
 	private Color color; // Color of the rectangle
 
 	/**
-	 * Constructs a rectangle with specified upper-left corner, width, height, and color.
-	 * @param x1 The x-coordinate of the upper-left corner
-	 * @param x2 The x-coordinate of the lower-right corner
+	 * Constructs an "empty" rectangle with only one corner set so far.
+	 * @param x1 The x-coordinate of the corner
+	 * @param y1 The y-coordinate of the corner
 	 * @param color The color of the rectangle
 	 */
-	public Rectangle(int x1, int x2, Color color) {
-		this.x1 = x1;
-		this.x2 = x2;
+	public Rectangle(int x1, int y1, Color color) {
+		this.x1 = x1; this.x2 = x1;
+		this.y1 = y1; this.y2 = y1;
 		this.color = color;
 	}
 
@@ -32,12 +32,23 @@ public class Rectangle implements Shape {
 	 * @param color The color of the rectangle
 	 */
 	public Rectangle(int x1, int y1, int x2, int y2, Color color) {
+		setCorners(x1, y1, x2, y2);
+		this.color = color;
+	}
+
+	/**
+	 * Redefines the rectangle based on new corners, in any order.
+	 * @param x1 The x-coordinate of one corner
+	 * @param y1 The y-coordinate of one corner
+	 * @param x2 The x-coordinate of the opposite corner
+	 * @param y2 The y-coordinate of the opposite corner
+	 */
+	public void setCorners(int x1, int y1, int x2, int y2) {
 		// Ensuring x1 is less than or equal to x2 and y1 is less than or equal to y2
 		this.x1 = Math.min(x1, x2);
 		this.x2 = Math.max(x1, x2);
 		this.y1 = Math.min(y1, y2);
 		this.y2 = Math.max(y1, y2);
-		this.color = color;
 	}
 
 	/**
@@ -92,6 +103,15 @@ public class Rectangle implements Shape {
 		g.fillRect(x1, y1, x2 - x1, y2 - y1);
 	}
 
+	/**
+	 * Gets the bounding box of the rectangle, which is the rectangle itself.
+	 * @return The rectangle from the upper-left to the lower-right corner
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+	}
+
 	/**
 	 * Returns a string representation of the rectangle.
 	 * @return A string representing the rectangle
@@ -0,0 +1,71 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times BandedRenderer against drawing the whole sketch on one thread, on a large random sketch,
+ * with pools of 1, 2, 4, ... threads up to the number of cores, and counts pixels where the two differ
+ * (a few, on the edges of ellipses, which Java2D rasterizes slightly differently at different translations).
+ *
+ * Run with: java -Djava.awt.headless=true RenderBenchmark [shapes] [size]
+ */
+public class RenderBenchmark {
+	public static void main(String[] args) {
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		Random random = new Random(42);
+		Sketch sketch = new Sketch();
+		for (int i = 0; i < shapes; i++) {
+			int x = random.nextInt(size), y = random.nextInt(size);
+			Color c = new Color(random.nextInt(0xffffff));
+			switch (i % 3) {
+				case 0: sketch.add(new Ellipse(x, y, x + random.nextInt(80), y + random.nextInt(80), c)); break;
+				case 1: sketch.add(new Rectangle(x, y, x + random.nextInt(80), y + random.nextInt(80), c)); break;
+				default: sketch.add(new Segment(x, y, x + random.nextInt(200) - 100, y + random.nextInt(200) - 100, c)); break;
+			}
+		}
+
+		BufferedImage serial = null;
+		long serialNanos = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			serial = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = serial.createGraphics();
+			g.setColor(Color.white);
+			g.fillRect(0, 0, size, size);
+			sketch.draw(g);
+			g.dispose();
+			serialNanos = Math.min(serialNanos, System.nanoTime() - start);
+		}
+		System.out.printf("%,d shapes on %dx%d%nserial      %8.1f ms%n", shapes, size, size, serialNanos / 1e6);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			BandedRenderer renderer = new BandedRenderer(pool, 0);
+			BufferedImage banded = null;
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < 3; i++) {
+				long start = System.nanoTime();
+				banded = renderer.render(sketch, size, size);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			System.out.printf("banded x%-3d %8.1f ms  speedup %.2f  %d pixels differ%n", threads, best / 1e6,
+					(double) serialNanos / best, differences(serial, banded));
+			if (threads < cores && threads * 2 > cores) threads = cores / 2;
+		}
+	}
+
+	private static int differences(BufferedImage a, BufferedImage b) {
+		int differences = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				if (a.getRGB(x, y) != b.getRGB(x, y)) differences++;
+			}
+		}
+		return differences;
+	}
+}
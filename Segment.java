@@ -90,6 +90,18 @@ public class Segment implements Shape {
 		g.drawLine(x1, y1, x2, y2);
 	}
 
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
+	}
+
+	/**
+	 * Appends " x1 y1 x2 y2" to the builder, for shapes made of segments
+	 */
+	void appendCoordinates(StringBuilder sb) {
+		sb.append(" ").append(x1).append(" ").append(y1).append(" ").append(x2).append(" ").append(y2);
+	}
+
 	@Override
 	public String toString() {
 		return "segment "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
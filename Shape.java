@@ -33,4 +33,9 @@ public interface Shape {
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
+
+	/**
+	 * @return The smallest rectangle enclosing everything draw() paints
+	 */
+	public java.awt.Rectangle getBounds();
 }
@@ -0,0 +1,242 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads shape files for bulk import, parsing them in chunks in parallel.
+ *
+ * A text file has one shape per line in its toString() form, e.g. "ellipse 10 10 50 40 -16777216"; lines of a
+ * snapshot ("draw <id> <shape>", as Sketch.toString() writes) are read too, their IDs ignored, and blank lines skipped.
+ * It is cut into chunks at line ends, one fork-join task each.
+ *
+ * A binary file starts with MAGIC and then holds blocks of up to BLOCK shapes, each block an int count and an int
+ * length in bytes, followed by that many records: the shape code (see OpTokenizer.SHAPES) as a byte, the RGB as an int,
+ * then for a polyline its number of segments and four ints per segment, or for anything else its four corner ints;
+ * all big-endian, as DataOutputStream writes. Block headers say where each block ends, so the blocks are found
+ * in one quick pass and then parsed as tasks of their own.
+ *
+ * Either way the shapes come back in file order, to be added to a sketch in one batch (see SketchServer.importShapes).
+ */
+public class ShapeImporter {
+	public static final byte[] MAGIC = {'S', 'K', 'B', '1'};	// starts a binary shape file
+	public static final int BLOCK = 4096;						// shapes per block in binary files written here
+	private static final byte[] DRAW = "draw ".getBytes(StandardCharsets.US_ASCII);	// starts a snapshot line
+
+	private final ForkJoinPool pool;		// parses the chunks
+	private final int chunkBytes;			// bytes of text per chunk, about
+
+	/**
+	 * An importer on the common fork-join pool, with chunks sized to give each core a few
+	 */
+	public ShapeImporter() {
+		this(ForkJoinPool.commonPool(), 0);
+	}
+
+	/**
+	 * @param pool Parses the chunks
+	 * @param chunkBytes Bytes of text per chunk, or 0 to pick them so each of the pool's threads gets about four chunks
+	 */
+	public ShapeImporter(ForkJoinPool pool, int chunkBytes) {
+		this.pool = pool;
+		this.chunkBytes = chunkBytes;
+	}
+
+	public Shape[] read(Path file) throws IOException {
+		return read(Files.readAllBytes(file));
+	}
+
+	/**
+	 * Parses a shape file, text or binary (told apart by MAGIC)
+	 * @param file The whole file
+	 * @return The shapes, in file order
+	 * @throws IllegalArgumentException if the file is malformed, saying where
+	 */
+	public Shape[] read(byte[] file) {
+		boolean binary = file.length >= MAGIC.length && java.util.Arrays.equals(file, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+		int[] starts = binary ? blocks(file) : lines(file);
+		int chunks = starts.length - 1;
+		List<List<Shape>> parsed = new ArrayList<List<Shape>>(java.util.Collections.nCopies(chunks, (List<Shape>) null));	// by chunk
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(chunks);
+					for (int c = 0; c < chunks; c++) {
+						int chunk = c;
+						tasks.add(new RecursiveAction() {
+							@Override
+							protected void compute() {
+								parsed.set(chunk, binary ? parseBlock(file, starts[chunk], starts[chunk + 1])
+										: parseText(file, starts[chunk], starts[chunk + 1]));
+							}
+						});
+					}
+					invokeAll(tasks);
+				}
+			});
+		}
+		catch (IllegalArgumentException e) {
+			// rethrown from another thread, around the one the chunk threw
+			throw e.getCause() instanceof IllegalArgumentException ? (IllegalArgumentException) e.getCause() : e;
+		}
+
+		int total = 0;
+		for (List<Shape> chunk : parsed) total += chunk.size();
+		Shape[] shapes = new Shape[total];
+		int n = 0;
+		for (List<Shape> chunk : parsed) {
+			for (Shape shape : chunk) shapes[n++] = shape;
+		}
+		return shapes;
+	}
+
+	/**
+	 * Cuts text into chunks of whole lines
+	 * @return Where each chunk starts, then the end of the file
+	 */
+	private int[] lines(byte[] file) {
+		int size = chunkBytes > 0 ? chunkBytes
+				: Math.max(1 << 16, file.length / (pool.getParallelism() * 4) + 1);
+		List<Integer> starts = new ArrayList<Integer>();
+		int start = 0;
+		while (start < file.length) {
+			starts.add(start);
+			int end = Math.min(file.length, start + size);
+			while (end < file.length && file[end - 1] != '\n') end++;
+			start = end;
+		}
+		starts.add(file.length);
+		int[] at = new int[starts.size()];
+		for (int i = 0; i < at.length; i++) at[i] = starts.get(i);
+		return at;
+	}
+
+	/**
+	 * Finds the blocks of a binary file from their headers
+	 * @return Where each block's header starts, then the end of the file
+	 */
+	private static int[] blocks(byte[] file) {
+		ByteBuffer in = ByteBuffer.wrap(file);
+		List<Integer> starts = new ArrayList<Integer>();
+		int at = MAGIC.length;
+		while (at < file.length) {
+			if (file.length - at < 8) throw new IllegalArgumentException("truncated block header at byte " + at);
+			int length = in.getInt(at + 4);
+			if (length < 0 || length > file.length - at - 8) throw new IllegalArgumentException("truncated block at byte " + at);
+			starts.add(at);
+			at += 8 + length;
+		}
+		starts.add(file.length);
+		int[] blocks = new int[starts.size()];
+		for (int i = 0; i < blocks.length; i++) blocks[i] = starts.get(i);
+		return blocks;
+	}
+
+	private static List<Shape> parseText(byte[] file, int from, int to) {
+		List<Shape> shapes = new ArrayList<Shape>();
+		OpTokenizer line = new OpTokenizer();
+		int start = from;
+		while (start < to) {
+			int end = start;
+			while (end < to && file[end] != '\n') end++;
+			int length = end - start;
+			if (length > 0 && file[end - 1] == '\r') length--;
+			if (length > 0) {
+				line.reset(file, start, length);
+				try {
+					if (length > DRAW.length && java.util.Arrays.equals(file, start, start + DRAW.length, DRAW, 0, DRAW.length)) {
+						line.skip();
+						if (line.atNumber()) line.skip();
+					}
+					shapes.add(Sketch.parseShape(line));
+					if (line.hasNext()) throw new IllegalArgumentException("more after the shape");
+				}
+				catch (RuntimeException e) {
+					throw new IllegalArgumentException("malformed shape at byte " + start + ": " + e.getMessage());
+				}
+			}
+			start = end + 1;
+		}
+		return shapes;
+	}
+
+	private static List<Shape> parseBlock(byte[] file, int from, int to) {
+		ByteBuffer in = ByteBuffer.wrap(file, from, to - from);
+		int count = in.getInt();
+		in.getInt();
+		if (count < 0 || count > in.remaining() / 21) {	// 21 bytes being the least a record takes
+			throw new IllegalArgumentException("malformed block at byte " + from + ": " + count + " shapes");
+		}
+		List<Shape> shapes = new ArrayList<Shape>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				int type = in.get();
+				java.awt.Color color = new java.awt.Color(in.getInt());
+				if (type == OpTokenizer.POLYLINE) {
+					int segments = in.getInt();
+					if (segments < 0 || segments > in.remaining() / 16) throw new IllegalArgumentException("bad polyline");
+					ArrayList<Segment> parts = new ArrayList<Segment>(segments);
+					for (int s = 0; s < segments; s++) {
+						parts.add(new Segment(in.getInt(), in.getInt(), in.getInt(), in.getInt(), color));
+					}
+					shapes.add(new Polyline(parts, color));
+					continue;
+				}
+				int x1 = in.getInt(), y1 = in.getInt(), x2 = in.getInt(), y2 = in.getInt();
+				switch (type) {
+					case OpTokenizer.ELLIPSE: shapes.add(new Ellipse(x1, y1, x2, y2, color)); break;
+					case OpTokenizer.RECTANGLE: shapes.add(new Rectangle(x1, y1, x2, y2, color)); break;
+					case OpTokenizer.SEGMENT: shapes.add(new Segment(x1, y1, x2, y2, color)); break;
+					default: throw new IllegalArgumentException("unknown shape code " + type);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IllegalArgumentException("malformed block at byte " + from + ": " + e.getMessage());
+		}
+		if (in.hasRemaining()) throw new IllegalArgumentException("malformed block at byte " + from + ": bytes left over");
+		return shapes;
+	}
+
+	/**
+	 * Writes shapes as a binary shape file, e.g. to import later
+	 * @param shapes The shapes, bottom first
+	 * @param out Where to write; not closed
+	 */
+	public static void writeBinary(Shape[] shapes, OutputStream out) throws IOException {
+		out.write(MAGIC);
+		DataOutputStream data = new DataOutputStream(out);
+		OpTokenizer form = new OpTokenizer();
+		java.io.ByteArrayOutputStream block = new java.io.ByteArrayOutputStream();
+		DataOutputStream records = new DataOutputStream(block);
+		for (int first = 0; first < shapes.length; first += BLOCK) {
+			int count = Math.min(BLOCK, shapes.length - first);
+			block.reset();
+			for (int i = first; i < first + count; i++) {
+				form.reset(shapes[i].toString());
+				int type = form.nextShape();
+				int ints = form.remaining() - 1;	// coordinates, before the color
+				int start = form.position();
+				for (int k = 0; k < ints; k++) form.skip();
+				records.writeByte(type);
+				records.writeInt(form.nextInt());
+				if (type == OpTokenizer.POLYLINE) records.writeInt(ints / 4);
+				form.seek(start);
+				for (int k = 0; k < ints; k++) records.writeInt(form.nextInt());
+			}
+			records.flush();
+			data.writeInt(count);
+			data.writeInt(block.size());
+			block.writeTo(data);
+		}
+		data.flush();
+	}
+}
@@ -0,0 +1,353 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A Sketch split into shards by ID, each a Sketch of its own with a thread of its own, for boards too busy for one core.
+ *
+ * Edits are handed to the shard holding the shape and return at once; each shard's thread applies what it is given
+ * in the order given, so the edits to any one shape happen in the order they were made, while edits to shapes in
+ * different shards run in parallel. A batch is split by shard, so it is applied shard by shard rather than all at once.
+ * Shapes are stacked in one order across all shards: each gets the next z when it is handed over to be added.
+ * Queries are handed to every shard (or to the one that matters) behind the edits already given to it, so they see
+ * all of those; the shards' answers are merged in stacking order, e.g. contains() takes the topmost of the shards' hits.
+ * Shapes given out are copies made by the shards in step with their edits, since the shards go on editing their own.
+ * The version and changedSince() count edits as they are handed over, so whatever is asked after reading the version
+ * sees at least those edits.
+ * Shapes in shards are plain (heap) Sketches, whatever sketch.columnar says.
+ *
+ * Only the storing and querying of shapes is sharded: whoever makes the edits still makes them one at a time
+ * (SketchServer sequences and passes on ops under its own lock), and what the shards take off it is applying them.
+ */
+public class ShardedSketch extends Sketch {
+	private final Sketch[] shards;
+	private final ExecutorService[] sequencers;		// by shard, the one thread that touches it
+	private final AtomicLong nextZ = new AtomicLong();	// stacking position for the next shape added
+	private final AtomicInteger backlog = new AtomicInteger();	// edits handed to shards and not yet applied
+
+	/**
+	 * @param count How many shards, e.g. one per core
+	 */
+	public ShardedSketch(int count) {
+		shards = new Sketch[count];
+		sequencers = new ExecutorService[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Sketch();
+			String name = "sketch shard " + i;
+			sequencers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Edits handed to shards that they have yet to apply; one that keeps growing means the shards can't keep up
+	 */
+	public int getBacklog() {
+		return backlog.get();
+	}
+
+	/**
+	 * The shard holding a shape: IDs are spread by a multiplicative hash, since one client's shapes have
+	 * neighboring IDs and would otherwise all land together
+	 */
+	private int shardOf(long id) {
+		return (int) (((id * 0x9E3779B97F4A7C15L) >>> 32) % shards.length);
+	}
+
+	/**
+	 * Hands an edit to a shard's thread, behind everything handed to it before, and counts it against the shapes
+	 * it touches; both under the lock, so a version read never counts an edit not yet handed over
+	 * @param touched The IDs edited, ~ID for a delete
+	 */
+	private synchronized void edit(int shard, Runnable edit, long... touched) {
+		for (long id : touched) edited(id);
+		backlog.incrementAndGet();
+		sequencers[shard].execute(() -> {
+			try {
+				edit.run();
+			}
+			finally {
+				backlog.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Asks every shard, on its own thread and behind the edits already given to it, and waits for all the answers
+	 * @return The answers, by shard
+	 */
+	private <T> List<T> each(Function<Sketch, T> query) {
+		List<Future<T>> asked = new ArrayList<Future<T>>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			Sketch shard = shards[i];
+			asked.add(sequencers[i].submit(() -> query.apply(shard)));
+		}
+		List<T> answers = new ArrayList<T>(shards.length);
+		for (Future<T> answer : asked) answers.add(await(answer));
+		return answers;
+	}
+
+	/**
+	 * Asks the shard holding a shape, behind the edits already given to it
+	 */
+	private <T> T one(long id, Function<Sketch, T> query) {
+		int i = shardOf(id);
+		Sketch shard = shards[i];
+		return await(sequencers[i].submit(() -> query.apply(shard)));
+	}
+
+	private static <T> T await(Future<T> answer) {
+		try {
+			return answer.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted waiting for a shard", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("shard query failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Splits a batch's IDs by shard
+	 * @return By shard, its IDs in batch order (empty if none)
+	 */
+	private long[][] byShard(long[] ids) {
+		int[] counts = new int[shards.length];
+		for (long id : ids) counts[shardOf(id)]++;
+		long[][] split = new long[shards.length][];
+		for (int i = 0; i < shards.length; i++) split[i] = new long[counts[i]];
+		int[] filled = new int[shards.length];
+		for (long id : ids) {
+			int i = shardOf(id);
+			split[i][filled[i]++] = id;
+		}
+		return split;
+	}
+
+	/**
+	 * A copy of a shape, as it stands; made on its shard's thread, which is the only one to edit the original
+	 */
+	private static Shape copy(Shape shape) {
+		return shape == null ? null : Sketch.parseShape(new OpTokenizer().reset(shape.toString()));
+	}
+
+	/**
+	 * A copy of every shape across the shards, by z, as (ID, shape)
+	 */
+	private TreeMap<Long, Map.Entry<Long, Shape>> stack() {
+		TreeMap<Long, Map.Entry<Long, Shape>> stack = new TreeMap<Long, Map.Entry<Long, Shape>>();
+		for (Map<Long, Map.Entry<Long, Shape>> part : each(shard -> {
+			Map<Long, Map.Entry<Long, Shape>> byZ = new TreeMap<Long, Map.Entry<Long, Shape>>();
+			for (Map.Entry<Long, Long> zId : shard.zIds.entrySet()) {
+				byZ.put(zId.getKey(), Map.entry(zId.getValue(), copy(shard.idShapes.get(zId.getValue()))));
+			}
+			return byZ;
+		})) {
+			stack.putAll(part);
+		}
+		return stack;
+	}
+
+	@Override
+	public void setLockHoldHistogram(Histogram lockHold) {
+		for (Sketch shard : shards) shard.setLockHoldHistogram(lockHold);
+	}
+
+	@Override
+	public long contains(int x, int y) {
+		long top = -1, topZ = -1;
+		for (long[] hit : each(shard -> {
+			long id = shard.contains(x, y);
+			return id == -1 ? null : new long[] {shard.idZ.get(id), id};
+		})) {
+			if (hit != null && hit[0] > topZ) {
+				topZ = hit[0];
+				top = hit[1];
+			}
+		}
+		return top;
+	}
+
+	@Override
+	public void add(long id, Shape s) {
+		long z = nextZ.getAndIncrement();
+		int i = shardOf(id);
+		edit(i, () -> shards[i].add(id, s, z), id);
+	}
+
+	/**
+	 * Hands each shard its share of the shapes as one batch, stacked in the order given
+	 */
+	@Override
+	public void add(long firstId, Shape[] shapes) {
+		long z = nextZ.getAndAdd(shapes.length);
+		int[] counts = new int[shards.length];
+		for (int k = 0; k < shapes.length; k++) counts[shardOf(firstId + k)]++;
+		long[][] ids = new long[shards.length][];
+		Shape[][] parts = new Shape[shards.length][];
+		long[][] zs = new long[shards.length][];
+		for (int i = 0; i < shards.length; i++) {
+			ids[i] = new long[counts[i]];
+			parts[i] = new Shape[counts[i]];
+			zs[i] = new long[counts[i]];
+		}
+		int[] filled = new int[shards.length];
+		for (int k = 0; k < shapes.length; k++) {
+			int i = shardOf(firstId + k);
+			ids[i][filled[i]] = firstId + k;
+			parts[i][filled[i]] = shapes[k];
+			zs[i][filled[i]++] = z + k;
+		}
+		for (int i = 0; i < shards.length; i++) {
+			if (counts[i] == 0) continue;
+			Sketch shard = shards[i];
+			long[] shardIds = ids[i], shardZs = zs[i];
+			Shape[] part = parts[i];
+			edit(i, () -> shard.add(shardIds, part, shardZs), shardIds);
+		}
+		if (firstId >>> 32 == 0) {
+			synchronized (this) {
+				ID = Math.max(ID, firstId + shapes.length);
+			}
+		}
+	}
+
+	@Override
+	public Shape getShapeById(long id) {
+		return one(id, shard -> copy(shard.getShapeById(id)));
+	}
+
+	@Override
+	public Map<Long, Shape> getMap() {
+		Map<Long, Shape> map = new LinkedHashMap<Long, Shape>();
+		for (Map.Entry<Long, Shape> shape : stack().values()) map.put(shape.getKey(), shape.getValue());
+		return map;
+	}
+
+	@Override
+	public List<Shape> getShapes() {
+		List<Shape> shapes = new ArrayList<Shape>();
+		for (Map.Entry<Long, Shape> shape : stack().values()) shapes.add(shape.getValue());
+		return shapes;
+	}
+
+	@Override
+	public void recolor(long id, Color c) {
+		int i = shardOf(id);
+		edit(i, () -> shards[i].recolor(id, c), id);
+	}
+
+	@Override
+	public void delete(long id) {
+		int i = shardOf(id);
+		edit(i, () -> shards[i].delete(id), ~id);
+	}
+
+	@Override
+	public void move(long id, int dx, int dy) {
+		int i = shardOf(id);
+		edit(i, () -> shards[i].move(id, dx, dy), id);
+	}
+
+	@Override
+	public void move(long[] ids, int dx, int dy) {
+		long[][] split = byShard(ids);
+		for (int i = 0; i < shards.length; i++) {
+			if (split[i].length == 0) continue;
+			Sketch shard = shards[i];
+			long[] part = split[i];
+			edit(i, () -> shard.move(part, dx, dy), part);
+		}
+	}
+
+	@Override
+	public void recolor(long[] ids, Color c) {
+		long[][] split = byShard(ids);
+		for (int i = 0; i < shards.length; i++) {
+			if (split[i].length == 0) continue;
+			Sketch shard = shards[i];
+			long[] part = split[i];
+			edit(i, () -> shard.recolor(part, c), part);
+		}
+	}
+
+	@Override
+	public void delete(long[] ids) {
+		long[][] split = byShard(ids);
+		for (int i = 0; i < shards.length; i++) {
+			if (split[i].length == 0) continue;
+			Sketch shard = shards[i];
+			long[] part = split[i];
+			long[] deleted = new long[part.length];
+			for (int k = 0; k < part.length; k++) deleted[k] = ~part[k];
+			edit(i, () -> shard.delete(part), deleted);
+		}
+	}
+
+	@Override
+	public List<Long> within(java.awt.Rectangle area) {
+		TreeMap<Long, Long> inside = new TreeMap<Long, Long>();
+		for (Map<Long, Long> part : each(shard -> {
+			Map<Long, Long> byZ = new TreeMap<Long, Long>();
+			for (long id : shard.within(area)) byZ.put(shard.idZ.get(id), id);
+			return byZ;
+		})) {
+			inside.putAll(part);
+		}
+		return new ArrayList<Long>(inside.values());
+	}
+
+	/**
+	 * Draws the shapes as they stood when the shards were asked
+	 */
+	@Override
+	public void draw(Graphics g) {
+		for (Map.Entry<Long, Shape> shape : stack().values()) shape.getValue().draw(g);
+	}
+
+	/**
+	 * Each shape's ID and toString(), by z; the strings are made by the shards, in parallel and in step with their edits
+	 */
+	private TreeMap<Long, Map.Entry<Long, String>> lines() {
+		TreeMap<Long, Map.Entry<Long, String>> lines = new TreeMap<Long, Map.Entry<Long, String>>();
+		for (Map<Long, Map.Entry<Long, String>> part : each(shard -> {
+			Map<Long, Map.Entry<Long, String>> byZ = new TreeMap<Long, Map.Entry<Long, String>>();
+			for (Map.Entry<Long, Long> zId : shard.zIds.entrySet()) {
+				byZ.put(zId.getKey(), Map.entry(zId.getValue(), shard.idShapes.get(zId.getValue()).toString()));
+			}
+			return byZ;
+		})) {
+			lines.putAll(part);
+		}
+		return lines;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Long, String> line : lines().values()) {
+			sb.append("draw ").append(line.getKey()).append(" ").append(line.getValue()).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -1,91 +1,645 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.awt.Color;
 import java.awt.Graphics;
 
+/**
+ * The shapes making up a drawing, each under an ID that never changes.
+ *
+ * IDs are chosen by whoever draws the shape, without asking anyone: the drawing client's id in the
+ * high 32 bits and its own counter in the low 32 (see id()), so concurrent editors never collide.
+ * Stacking order is kept apart from IDs: each shape gets the next z when it is added, and since every
+ * replica adds shapes in the order the server sequenced them, all replicas stack shapes the same way.
+ * For finding shapes by area, each shape is also filed in a uniform grid under the cell holding the top-left
+ * corner of its bounds: a shape lies wholly inside an area only if that corner does, so within() looks at just
+ * the cells the area covers, however large the board.
+ */
 public class Sketch {
-    TreeMap<Integer, Shape> idShapes;
-    int ID = 0;
+    HashMap<Long, Shape> idShapes;    // every shape, by ID
+    TreeMap<Long, Long> zIds;         // IDs in stacking order, bottom first
+    HashMap<Long, Long> idZ;          // each ID's place in zIds
+    static final int CELL = 256;      // side of a grid cell
+    HashMap<Long, HashSet<Long>> grid;    // IDs by the grid cell holding the top-left of their bounds (see cell())
+    HashMap<Long, Long> cellOf;       // each ID's cell in grid
+    long Z = 0;                       // z for the next shape added
+    long ID = 0;                      // next ID for shapes added without one (client 0's range)
+    long version = 0;                 // edits so far, so caches of the sketch's look can tell they are stale
+    static final int EDITS = 4096;    // edits whose shape IDs are kept, for caches to refresh just those
+    static final long RESTACKED = Long.MIN_VALUE;   // kept for an edit that put a shape below the top
+    final long[] editedIds = new long[EDITS];   // by version, modulo EDITS: the ID each edit touched, ~ID for a delete
+    int batching = 0;                 // batch methods under way, whose lock hold is recorded once for the whole batch
+    private Histogram lockHold;    // time spent holding this object's lock, if anyone is watching
 
     /**
      * Constructs a Sketch object.
-     * Initializes the TreeMap to store shapes.
+     * Initializes the maps to store shapes.
      */
     public Sketch() {
-        this.idShapes = new TreeMap<Integer, Shape>();
+        this.idShapes = new HashMap<Long, Shape>();
+        this.zIds = new TreeMap<Long, Long>();
+        this.idZ = new HashMap<Long, Long>();
+        this.grid = new HashMap<Long, HashSet<Long>>();
+        this.cellOf = new HashMap<Long, Long>();
+    }
+
+    /**
+     * Packs a client id and that client's shape counter into a shape ID.
+     * @param clientId The id the server gave the drawing client
+     * @param counter The client's count of shapes it has drawn
+     * @return The shape ID
+     */
+    public static long id(int clientId, int counter) {
+        return ((long) clientId << 32) | (counter & 0xffffffffL);
+    }
+
+    /**
+     * Records how long each synchronized operation holds the lock into the given histogram.
+     * @param lockHold The histogram to record into, or null to stop recording
+     */
+    public synchronized void setLockHoldHistogram(Histogram lockHold) {
+        this.lockHold = lockHold;
+    }
+
+    /**
+     * Counts edits: the number changes whenever a shape is added, replaced, moved, recolored or deleted.
+     * @return The number of edits so far
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * The IDs of the shapes edited since a version, so a cache of the sketch's look can refresh just those shapes.
+     * A shape added goes on top; one replaced, moved or recolored keeps its place.
+     * @param since A version, as getVersion() gave it
+     * @return The IDs, oldest edit first and maybe repeated, with a delete given as ~ID; null if the edits since are
+     * too many to have been kept, or include a shape added below the top
+     */
+    public synchronized long[] changedSince(long since) {
+        if (since > version || version - since > EDITS) return null;
+        long[] ids = new long[(int) (version - since)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = editedIds[(int) ((since + i) % EDITS)];
+            if (ids[i] == RESTACKED) return null;
+        }
+        return ids;
+    }
+
+    /**
+     * Counts an edit to a shape; called with the lock held, in place of bumping the version directly.
+     */
+    void edited(long id) {
+        editedIds[(int) (version % EDITS)] = id;
+        version++;
+    }
+
+    /**
+     * The grid cell holding a point, as its column in the high 32 bits and its row in the low 32
+     */
+    static long cell(int x, int y) {
+        return ((long) Math.floorDiv(x, CELL) << 32) | (Math.floorDiv(y, CELL) & 0xffffffffL);
+    }
+
+    /**
+     * Files a shape in the grid where its bounds now start, in place of where it was; called with the lock held.
+     */
+    void index(long id, Shape s) {
+        java.awt.Rectangle bounds = s.getBounds();
+        long cell = cell(bounds.x, bounds.y);
+        Long before = cellOf.put(id, cell);
+        if (before != null) {
+            if (before == cell) return;
+            unfile(id, before);
+        }
+        grid.computeIfAbsent(cell, c -> new HashSet<Long>()).add(id);
+    }
+
+    /**
+     * Takes a shape out of the grid; called with the lock held.
+     */
+    void unindex(long id) {
+        Long cell = cellOf.remove(id);
+        if (cell != null) unfile(id, cell);
+    }
+
+    private void unfile(long id, long cell) {
+        HashSet<Long> ids = grid.get(cell);
+        ids.remove(id);
+        if (ids.isEmpty()) grid.remove(cell);
+    }
+
+    /**
+     * Records the time since start as lock hold time; called just before a synchronized method returns.
+     */
+    void held(long start) {
+        if (lockHold != null && batching == 0) {
+            lockHold.record(System.nanoTime() - start);
+        }
     }
 
     /**
      * Checks if a point is contained within any shape in the sketch.
      * @param x The x-coordinate of the point
      * @param y The y-coordinate of the point
-     * @return The ID of the shape containing the point, or -1 if no shape contains the point
+     * @return The ID of the topmost shape containing the point, or -1 if no shape contains the point
      */
-    public synchronized int contains(int x, int y) {
-        for (int ID : idShapes.descendingKeySet()) {
-            if (idShapes.get(ID).contains(x, y)) {
-                return ID;
+    public synchronized long contains(int x, int y) {
+        long start = System.nanoTime();
+        try {
+            for (long ID : zIds.descendingMap().values()) {
+                if (idShapes.get(ID).contains(x, y)) {
+                    return ID;
+                }
             }
+            return -1;
+        } finally {
+            held(start);
         }
-        return -1;
     }
 
     /**
-     * Adds a shape to the sketch.
+     * Adds a shape to the sketch, on top, under the next ID in client 0's range.
      * @param s The shape to add
+     * @return The ID given to the shape
      */
-    public synchronized void add(Shape s) {
-        idShapes.put(ID, s);
-        ID++;
+    public synchronized long add(Shape s) {
+        long id = ID++;
+        add(id, s);
+        return id;
+    }
+
+    /**
+     * Adds a shape to the sketch, on top, under an ID chosen elsewhere.
+     * A shape already under that ID is replaced where it stands.
+     * @param id The ID of the shape
+     * @param s The shape to add
+     */
+    public synchronized void add(long id, Shape s) {
+        long start = System.nanoTime();
+        edited(id);
+        if (idShapes.put(id, s) == null) {
+            zIds.put(Z, id);
+            idZ.put(id, Z);
+            Z++;
+        }
+        index(id, s);
+        held(start);
+    }
+
+    /**
+     * Adds a shape at a stacking position chosen elsewhere: its old one, to take back its deletion,
+     * or one handed out for a ShardedSketch whose shards share one stacking order.
+     * A shape already under that ID is replaced where it stands.
+     * @param id The ID of the shape
+     * @param s The shape to add
+     * @param z Its place in the stacking order
+     */
+    synchronized void add(long id, Shape s, long z) {
+        long start = System.nanoTime();
+        edited(z < Z && !idShapes.containsKey(id) ? RESTACKED : id);
+        if (idShapes.put(id, s) == null) {
+            zIds.put(z, id);
+            idZ.put(id, z);
+            Z = Math.max(Z, z + 1);
+        }
+        index(id, s);
+        held(start);
+    }
+
+    /**
+     * Adds many shapes on top, in order, under consecutive IDs in client 0's range, all under one hold of the lock.
+     * @param shapes The shapes to add, bottom first
+     * @return The ID given to the first; the rest follow on from it
+     */
+    public synchronized long add(Shape[] shapes) {
+        long first = ID;
+        add(first, shapes);
+        return first;
+    }
+
+    /**
+     * Adds many shapes on top, in order, under consecutive IDs chosen elsewhere, all under one hold of the lock,
+     * growing the indexes once for all of them rather than step by step.
+     * A shape already under one of the IDs is replaced where it stands.
+     * @param firstId The ID of the first shape; the rest follow on from it
+     * @param shapes The shapes to add, bottom first
+     */
+    public synchronized void add(long firstId, Shape[] shapes) {
+        long start = System.nanoTime();
+        batching++;
+        try {
+            reserve(shapes.length);
+            for (int i = 0; i < shapes.length; i++) add(firstId + i, shapes[i]);
+            if (firstId >>> 32 == 0) ID = Math.max(ID, firstId + shapes.length);
+        }
+        finally {
+            batching--;
+        }
+        held(start);
+    }
+
+    /**
+     * Adds many shapes at stacking positions chosen elsewhere, for a ShardedSketch's share of an import.
+     * @param ids The IDs of the shapes
+     * @param shapes The shapes
+     * @param zs Their places in the stacking order
+     */
+    synchronized void add(long[] ids, Shape[] shapes, long[] zs) {
+        long start = System.nanoTime();
+        batching++;
+        try {
+            reserve(ids.length);
+            for (int i = 0; i < ids.length; i++) add(ids[i], shapes[i], zs[i]);
+        }
+        finally {
+            batching--;
+        }
+        held(start);
+    }
+
+    /**
+     * Makes room in the indexes for more shapes at once, so that a large batch rehashes them once, not at every doubling.
+     */
+    private void reserve(int more) {
+        int size = idShapes.size() + more;
+        if (size <= idShapes.size() * 2) return;    // at most one doubling anyway
+        HashMap<Long, Shape> shapes = new HashMap<Long, Shape>(size * 4 / 3 + 1);
+        shapes.putAll(idShapes);
+        idShapes = shapes;
+        HashMap<Long, Long> zs = new HashMap<Long, Long>(size * 4 / 3 + 1);
+        zs.putAll(idZ);
+        idZ = zs;
+        HashMap<Long, Long> cells = new HashMap<Long, Long>(size * 4 / 3 + 1);
+        cells.putAll(cellOf);
+        cellOf = cells;
+    }
+
+    /**
+     * Gets the shape with the given ID.
+     * @param id The ID of the shape
+     * @return The shape, or null if there is none with that ID
+     */
+    public synchronized Shape getShapeById(long id) {
+        return idShapes.get(id);
+    }
+
+    /**
+     * Gets a copy of the ID to shape map, in drawing order, safe to iterate while others edit.
+     * @return The shapes keyed by ID
+     */
+    public synchronized Map<Long, Shape> getMap() {
+        Map<Long, Shape> map = new LinkedHashMap<Long, Shape>();
+        for (long id : zIds.values()) {
+            map.put(id, idShapes.get(id));
+        }
+        return map;
+    }
+
+    /**
+     * Gets the shapes in drawing order, bottom first, as a list safe to use while others edit.
+     * The shapes themselves are shared, so one moved meanwhile may be seen at either position.
+     * @return The shapes
+     */
+    public synchronized List<Shape> getShapes() {
+        List<Shape> shapes = new ArrayList<Shape>(idShapes.size());
+        for (long id : zIds.values()) {
+            shapes.add(idShapes.get(id));
+        }
+        return shapes;
     }
 
     /**
      * Recolors a shape in the sketch.
-     * @param s The shape to recolor
+     * @param id The ID of the shape to recolor
      * @param c The color to set
      */
-    public synchronized void recolor(Shape s, Color c) {
-        idShapes.get(s).setColor(c);
+    public synchronized void recolor(long id, Color c) {
+        long start = System.nanoTime();
+        Shape s = idShapes.get(id);
+        if (s != null) {
+            s.setColor(c);
+            edited(id);
+        }
+        held(start);
     }
 
     /**
      * Deletes a shape from the sketch.
-     * @param s The shape to delete
+     * @param id The ID of the shape to delete
      */
-    public synchronized void delete(Shape s) {
-        idShapes.remove(s);
+    public synchronized void delete(long id) {
+        long start = System.nanoTime();
+        if (idShapes.remove(id) != null) {
+            zIds.remove(idZ.remove(id));
+            unindex(id);
+            edited(~id);
+        }
+        held(start);
     }
 
     /**
      * Moves a shape in the sketch.
-     * @param s The shape to move
+     * @param id The ID of the shape to move
      * @param dx The change in x-coordinate
      * @param dy The change in y-coordinate
      */
-    public synchronized void move(Shape s, int dx, int dy) {
-        idShapes.get(s).moveBy(dx, dy);
+    public synchronized void move(long id, int dx, int dy) {
+        long start = System.nanoTime();
+        Shape s = idShapes.get(id);
+        if (s != null) {
+            s.moveBy(dx, dy);
+            index(id, s);
+            edited(id);
+        }
+        held(start);
+    }
+
+    /**
+     * Moves several shapes, all under one hold of the lock so no one sees some moved and others not.
+     * @param ids The IDs of the shapes to move
+     * @param dx The change in x-coordinate
+     * @param dy The change in y-coordinate
+     */
+    public synchronized void move(long[] ids, int dx, int dy) {
+        long start = System.nanoTime();
+        batching++;
+        try {
+            for (long id : ids) move(id, dx, dy);
+        }
+        finally {
+            batching--;
+        }
+        held(start);
+    }
+
+    /**
+     * Recolors several shapes under one hold of the lock.
+     * @param ids The IDs of the shapes to recolor
+     * @param c The color to set
+     */
+    public synchronized void recolor(long[] ids, Color c) {
+        long start = System.nanoTime();
+        batching++;
+        try {
+            for (long id : ids) recolor(id, c);
+        }
+        finally {
+            batching--;
+        }
+        held(start);
+    }
+
+    /**
+     * Deletes several shapes under one hold of the lock.
+     * @param ids The IDs of the shapes to delete
+     */
+    public synchronized void delete(long[] ids) {
+        long start = System.nanoTime();
+        batching++;
+        try {
+            for (long id : ids) delete(id);
+        }
+        finally {
+            batching--;
+        }
+        held(start);
+    }
+
+    /**
+     * Finds the shapes lying wholly inside an area, e.g. to select them with a rubber band.
+     * Only shapes filed in the grid cells the area covers are looked at; or, for an area covering more cells than
+     * hold shapes, those in the cells that hold shapes.
+     * @param area The area, in sketch coordinates
+     * @return The IDs of the shapes inside, bottom first
+     */
+    public synchronized List<Long> within(java.awt.Rectangle area) {
+        long start = System.nanoTime();
+        List<Long> inside = new ArrayList<Long>();
+        if (area.isEmpty()) {
+            held(start);
+            return inside;
+        }
+        int left = Math.floorDiv(area.x, CELL), right = Math.floorDiv(area.x + area.width - 1, CELL);
+        int top = Math.floorDiv(area.y, CELL), bottom = Math.floorDiv(area.y + area.height - 1, CELL);
+        List<HashSet<Long>> cells = new ArrayList<HashSet<Long>>();
+        if ((right - left + 1L) * (bottom - top + 1L) <= grid.size()) {
+            for (int col = left; col <= right; col++) {
+                for (int row = top; row <= bottom; row++) {
+                    HashSet<Long> ids = grid.get(((long) col << 32) | (row & 0xffffffffL));
+                    if (ids != null) cells.add(ids);
+                }
+            }
+        }
+        else {
+            for (Map.Entry<Long, HashSet<Long>> cell : grid.entrySet()) {
+                int col = (int) (cell.getKey() >> 32), row = (int) (long) cell.getKey();
+                if (col >= left && col <= right && row >= top && row <= bottom) cells.add(cell.getValue());
+            }
+        }
+        for (HashSet<Long> ids : cells) {
+            for (long id : ids) {
+                if (area.contains(idShapes.get(id).getBounds())) inside.add(id);
+            }
+        }
+        inside.sort(Comparator.comparing(idZ::get));
+        held(start);
+        return inside;
     }
 
     /**
-     * Draws all shapes in the sketch using the given graphics context.
+     * Draws all shapes in the sketch using the given graphics context, bottom first.
      * @param g The graphics context to draw on
      */
     public synchronized void draw(Graphics g) {
-        for (int each : idShapes.keySet()) {
+        long start = System.nanoTime();
+        for (long each : zIds.values()) {
             idShapes.get(each).draw(g);
         }
+        held(start);
+    }
+
+    /**
+     * Applies an op in message form: "draw <shape>" (given the next free ID), "draw <ID> <shape>",
+     * "move <ID> <dx> <dy>", "recolor <ID> <rgb>", "delete <ID>" or "import <firstID> <count> <shapes>".
+     * Move, recolor and delete also take a comma-separated list of IDs, applied as one batch.
+     * An import adds count shapes under consecutive IDs as one batch (see importOp).
+     * @param op The message, positioned at the op's verb; left after the op
+     * @return The ID of the shape affected, or of the first one in a batch
+     * @throws IllegalArgumentException if the op is unknown or malformed
+     */
+    public long apply(OpTokenizer op) {
+        return HANDLERS[op.nextOp()].apply(this, op);
+    }
+
+    /**
+     * Applies the rest of an op, once its verb has been read
+     */
+    private interface OpHandler {
+        long apply(Sketch sketch, OpTokenizer op);
+    }
+
+    /** Handlers by op code (see OpTokenizer.OPS) */
+    private static final OpHandler[] HANDLERS = {Sketch::applyDraw, Sketch::applyMove, Sketch::applyRecolor, Sketch::applyDelete,
+            Sketch::applyImport};
+
+    private long applyDraw(OpTokenizer op) {
+        if (op.atWord()) {
+            return add(parseShape(op));
+        }
+        long id = op.nextLong();
+        add(id, parseShape(op));
+        return id;
+    }
+
+    private long applyMove(OpTokenizer op) {
+        int n = op.nextIds();
+        int dx = op.nextInt(), dy = op.nextInt();
+        if (n == 1) move(op.id(0), dx, dy);
+        else move(op.copyIds(), dx, dy);
+        return op.id(0);
+    }
+
+    private long applyRecolor(OpTokenizer op) {
+        int n = op.nextIds();
+        Color color = new Color(op.nextInt());
+        if (n == 1) recolor(op.id(0), color);
+        else recolor(op.copyIds(), color);
+        return op.id(0);
+    }
+
+    private long applyDelete(OpTokenizer op) {
+        int n = op.nextIds();
+        if (n == 1) delete(op.id(0));
+        else delete(op.copyIds());
+        return op.id(0);
+    }
+
+    private long applyImport(OpTokenizer op) {
+        long first = op.nextLong();
+        int count = op.nextInt();
+        Shape[] shapes = new Shape[count];
+        for (int i = 0; i < count; i++) {
+            int type = op.nextShape();
+            shapes[i] = parseShape(op, type, type == OpTokenizer.POLYLINE ? op.nextInt() : 0);
+        }
+        add(first, shapes);
+        return first;
+    }
+
+    /**
+     * Writes the shapes of an import, to follow "import <firstID> <count> " in an op: each in its toString() form,
+     * except that a polyline's segments are counted after its name, since they no longer run to the end of the line.
+     * @param shapes The shapes, bottom first
+     * @return e.g. "ellipse 10 10 50 40 -16777216 polyline 1 0 0 5 5 -16777216"
+     */
+    public static String importOp(Shape[] shapes) {
+        StringBuilder sb = new StringBuilder(shapes.length * 32);
+        for (Shape shape : shapes) {
+            if (sb.length() > 0) sb.append(' ');
+            String form = shape.toString();
+            if (form.startsWith("polyline ")) {
+                int words = 1;
+                for (int i = 0; i < form.length(); i++) {
+                    if (form.charAt(i) == ' ') words++;
+                }
+                sb.append("polyline ").append((words - 2) / 4).append(form, 8, form.length());
+            }
+            else {
+                sb.append(form);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses an ID, or a comma-separated list of them, as used in messages.
+     * @param list e.g. "4294967297" or "4294967297,4294967298"
+     * @return The IDs
+     */
+    public static long[] ids(String list) {
+        String[] each = list.split(",");
+        long[] ids = new long[each.length];
+        for (int i = 0; i < each.length; i++) {
+            ids[i] = Long.parseLong(each[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Writes IDs as a comma-separated list, for batch ops.
+     * @param ids The IDs
+     * @return e.g. "4294967297,4294967298"
+     */
+    public static String idList(List<Long> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a shape from its toString() form, e.g. "ellipse 10 10 50 40 -16777216".
+     * @param shape The message, positioned at the shape's type name; left after the shape
+     * @return The shape described
+     * @throws IllegalArgumentException if the type is unknown or the numbers are malformed
+     */
+    public static Shape parseShape(OpTokenizer shape) {
+        int type = shape.nextShape();
+        return parseShape(shape, type, type == OpTokenizer.POLYLINE ? (shape.remaining() - 1) / 4 : 0);
+    }
+
+    /**
+     * Parses the rest of a shape, once its type has been read.
+     * @param count For a polyline, how many segments it has
+     */
+    private static Shape parseShape(OpTokenizer shape, int type, int count) {
+        if (type == OpTokenizer.POLYLINE) {
+            // groups of four coordinates, one per segment, then the color, which the segments need first
+            int first = shape.position();
+            for (int i = 0; i < count * 4; i++) shape.skip();
+            Color color = new Color(shape.nextInt());
+            int end = shape.position();
+            shape.seek(first);
+            ArrayList<Segment> segments = new ArrayList<Segment>(count);
+            for (int i = 0; i < count; i++) {
+                segments.add(new Segment(shape.nextInt(), shape.nextInt(), shape.nextInt(), shape.nextInt(), color));
+            }
+            shape.seek(end);
+            return new Polyline(segments, color);
+        }
+        int x1 = shape.nextInt(), y1 = shape.nextInt(), x2 = shape.nextInt(), y2 = shape.nextInt();
+        Color color = new Color(shape.nextInt());
+        switch (type) {
+            case OpTokenizer.ELLIPSE:
+                return new Ellipse(x1, y1, x2, y2, color);
+            case OpTokenizer.RECTANGLE:
+                return new Rectangle(x1, y1, x2, y2, color);
+            default:
+                return new Segment(x1, y1, x2, y2, color);
+        }
     }
 
     /**
-     * Returns a string representation of the sketch.
+     * Returns a string representation of the sketch: one "draw ID shape" line per shape,
+     * bottom first, so a joining client can replay it like any other message.
      * @return A string representing the sketch
      */
     @Override
-    public String toString() {
+    public synchronized String toString() {
+        long start = System.nanoTime();
         StringBuilder sb = new StringBuilder();
-        sb.append("Sketch:\n");
-        for (int each : idShapes.keySet()) {
-            sb.append(idShapes.get(each).toString()).append("\n");
+        for (long each : zIds.values()) {
+            sb.append("draw ").append(each).append(" ").append(idShapes.get(each).toString()).append("\n");
         }
+        held(start);
         return sb.toString();
     }
 }
@@ -0,0 +1,468 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The history of a server's sketch, for going back to how the board stood at any seq: every op as sequenced,
+ * with a keyframe of the whole board every INTERVAL ops (or sooner after MAX_REPLAY_BYTES of them, e.g. an import).
+ *
+ * Seeking to a seq loads the keyframe at or before it and replays the ops from there, so it costs one keyframe
+ * plus at most one interval of ops however long the session; the keyframe's chunks are parsed in parallel.
+ * A Player plays through history by stepping forward from where it is, and only reloads a keyframe to go back
+ * or to jump more than an interval ahead; so at any speed, each step costs no more than a seek, and playing
+ * forward a little at a time costs only the ops played.
+ *
+ * A keyframe is the board's shapes in stacking order, in their toString() form, cut into chunks of up to CHUNK.
+ * Chunks are immutable and each keyframe shares with the one before it every chunk that no op since has touched,
+ * so a keyframe costs only the chunks that changed and the shapes drawn since; as do its memory and its making.
+ * Chunks stay between half and all of CHUNK: a chunk rewritten to less than half is merged with the next one
+ * (or the two split evenly, if together they are too many), an emptied one goes, and shapes drawn since fill up
+ * the last chunk before starting new ones; so a keyframe holds about as many chunks as the board needs, however
+ * long the session, and loading one parses about CHUNK shapes per task.
+ * Ops go in the keyframe before them. Keyframes are dropped, oldest first, once what they hold (their ops and the
+ * chunks no later keyframe shares) comes to more than MAX_BYTES.
+ *
+ * Recorded under the server's lock, which start() and record() expect; read from anywhere.
+ */
+public class SketchHistory {
+	private static final int INTERVAL = Integer.getInteger("sketch.history.interval", 1000);	// ops between keyframes
+	private static final long MAX_REPLAY_BYTES = 1 << 20;		// op bytes between keyframes, at most
+	private static final long MAX_BYTES = Long.getLong("sketch.history.bytes", 256L << 20);	// heap kept, about, at most
+	private static final int CHUNK = 1024;						// shapes per chunk of a keyframe, at most
+
+	private final Sketch sketch;
+	private final ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>();	// oldest first; empty until started
+	private long ops = 0;										// ops kept, across all keyframes
+	private long bytes = 0;										// what the keyframes hold, about, in bytes
+	private long bytesSince = 0;								// op bytes since the last keyframe
+
+	// what the ops since the last keyframe did, for making the next
+	private final Map<Long, Chunk> chunkOf = new HashMap<Long, Chunk>();	// for each shape in the last keyframe, its chunk
+	private final Set<Long> touched = new HashSet<Long>();		// shapes in it redrawn, moved or recolored
+	private final Set<Long> deleted = new HashSet<Long>();		// shapes in it deleted
+	private final LinkedHashSet<Long> drawn = new LinkedHashSet<Long>();	// shapes not in it, in the order they went on top
+	private final OpTokenizer tokens = new OpTokenizer();		// for reading ops as they are recorded
+
+	private final Histogram seekNanos = new Histogram();		// seeks and player steps
+	private final Histogram keyframeNanos = new Histogram();	// making keyframes
+
+	/**
+	 * Shapes in stacking order, IDs and forms alike; never changed once made
+	 */
+	private static class Chunk {
+		final long[] ids;
+		final String[] forms;
+		final long bytes;		// what it holds, about
+
+		Chunk(long[] ids, String[] forms) {
+			this.ids = ids;
+			this.forms = forms;
+			long bytes = 32;
+			for (String form : forms) bytes += 16 + size(form);
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * The board at a seq, and the ops after it up to the next keyframe
+	 */
+	private static class Keyframe {
+		final long seq;
+		final Chunk[] chunks;
+		final ArrayList<String> ops = new ArrayList<String>();	// the ops after seq, as broadcast; appended under the history's lock
+		long bytes;				// what it holds that the keyframe before doesn't: its ops, and the chunks it made
+
+		Keyframe(long seq, Chunk[] chunks, long bytes) {
+			this.seq = seq;
+			this.chunks = chunks;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Makes the board as it stood at seq, parsing the chunks as fork-join tasks
+		 */
+		Sketch load() {
+			int[] starts = new int[chunks.length + 1];
+			for (int c = 0; c < chunks.length; c++) starts[c + 1] = starts[c] + chunks[c].ids.length;
+			int n = starts[chunks.length];
+			long[] ids = new long[n], zs = new long[n];
+			Shape[] shapes = new Shape[n];
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (int c = 0; c < chunks.length; ) {
+				// a run of chunks with about CHUNK shapes in all
+				int from = c;
+				do c++; while (c < chunks.length && starts[c] - starts[from] + chunks[c].ids.length <= CHUNK);
+				int to = c;
+				tasks.add(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						OpTokenizer form = new OpTokenizer();
+						for (int r = from; r < to; r++) {
+							Chunk chunk = chunks[r];
+							int start = starts[r];
+							for (int k = 0; k < chunk.ids.length; k++) {
+								ids[start + k] = chunk.ids[k];
+								zs[start + k] = start + k;
+								shapes[start + k] = Sketch.parseShape(form.reset(chunk.forms[k]));
+							}
+						}
+					}
+				});
+			}
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+			Sketch sketch = new Sketch();
+			sketch.add(ids, shapes, zs);
+			return sketch;
+		}
+	}
+
+	public SketchHistory(Sketch sketch) {
+		this.sketch = sketch;
+	}
+
+	/**
+	 * Starts the history with a keyframe of the board as it is, if it hasn't been started; call before applying each op,
+	 * so that a server whose board came from elsewhere (a follower's, from its leader) starts from that
+	 * @param seq The seq the board is as of
+	 */
+	public synchronized void start(long seq) {
+		if (!keyframes.isEmpty()) return;
+		long begin = System.nanoTime();
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		List<Long> ids = new ArrayList<Long>(CHUNK);
+		List<String> forms = new ArrayList<String>(CHUNK);
+		for (Map.Entry<Long, Shape> shape : sketch.getMap().entrySet()) {
+			ids.add(shape.getKey());
+			forms.add(shape.getValue().toString());
+			if (ids.size() == CHUNK) flush(ids, forms, chunks);
+		}
+		if (!ids.isEmpty()) flush(ids, forms, chunks);
+		long made = 0;
+		for (Chunk chunk : chunks) made += chunk.bytes;
+		keyframes.add(new Keyframe(seq, chunks.toArray(new Chunk[0]), made));
+		bytes += made;
+		keyframeNanos.record(System.nanoTime() - begin);
+	}
+
+	/**
+	 * Forgets everything, for a server about to take on a board from elsewhere; start() begins again
+	 */
+	public synchronized void clear() {
+		keyframes.clear();
+		ops = 0;
+		bytes = 0;
+		bytesSince = 0;
+		chunkOf.clear();
+		touched.clear();
+		deleted.clear();
+		drawn.clear();
+	}
+
+	/**
+	 * Makes a chunk of the shapes gathered, adds it to the keyframe being made and notes where they are; then empties the lists
+	 */
+	private void flush(List<Long> ids, List<String> forms, List<Chunk> chunks) {
+		long[] idArray = new long[ids.size()];
+		for (int i = 0; i < idArray.length; i++) idArray[i] = ids.get(i);
+		Chunk chunk = new Chunk(idArray, forms.toArray(new String[0]));
+		for (long id : idArray) chunkOf.put(id, chunk);
+		chunks.add(chunk);
+		ids.clear();
+		forms.clear();
+	}
+
+	/**
+	 * Heap taken by a string, about
+	 */
+	private static long size(String s) {
+		return 40 + s.length();
+	}
+
+	/**
+	 * Records an op just applied to the sketch, making a keyframe after it if one is due
+	 * @param seq Its seq, one after the last recorded
+	 * @param op The op as broadcast, "<seq> <clientId> <clientSeq> <op>"
+	 */
+	public synchronized void record(long seq, String op) {
+		Keyframe last = keyframes.get(keyframes.size() - 1);
+		last.ops.add(op);
+		ops++;
+		last.bytes += size(op);
+		bytes += size(op);
+		bytesSince += op.length();
+		track(tokens.reset(op));
+		if (last.ops.size() >= INTERVAL || bytesSince >= MAX_REPLAY_BYTES) keyframe(seq);
+		while (bytes > MAX_BYTES && keyframes.size() > 1) drop();
+	}
+
+	/**
+	 * Drops the oldest keyframe and its ops; the chunks it shares with the next one are counted as the next one's now
+	 */
+	private void drop() {
+		Keyframe oldest = keyframes.remove(0), next = keyframes.get(0);
+		ops -= oldest.ops.size();
+		bytes -= oldest.bytes + next.bytes;
+		next.bytes = 0;
+		for (String op : next.ops) next.bytes += size(op);
+		for (Chunk chunk : next.chunks) next.bytes += chunk.bytes;
+		bytes += next.bytes;
+	}
+
+	/**
+	 * Notes which shapes an op changes
+	 */
+	private void track(OpTokenizer op) {
+		op.nextLong();
+		op.nextInt();
+		op.nextInt();
+		int code = op.nextOp();
+		if (code == OpTokenizer.DRAW) {
+			long id = op.nextLong();
+			if (drawn.contains(id)) return;			// replaced where it stands, read when the keyframe is made
+			if (chunkOf.containsKey(id) && !deleted.contains(id)) touched.add(id);
+			else drawn.add(id);						// new, or drawn again after being deleted, so on top
+		}
+		else if (code == OpTokenizer.IMPORT) {
+			long first = op.nextLong();
+			int count = op.nextInt();
+			for (int i = 0; i < count; i++) drawn.add(first + i);
+		}
+		else {
+			int n = op.nextIds();
+			for (int i = 0; i < n; i++) {
+				long id = op.id(i);
+				if (code != OpTokenizer.DELETE) {
+					if (chunkOf.containsKey(id) && !deleted.contains(id)) touched.add(id);
+				}
+				else if (!drawn.remove(id) && chunkOf.containsKey(id)) {
+					touched.remove(id);
+					deleted.add(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes a keyframe of the board as it is, from the last one and what has changed since
+	 */
+	private void keyframe(long seq) {
+		long begin = System.nanoTime();
+		// one pass over the board when much has changed, rather than asking for each shape (across threads, if sharded)
+		Map<Long, Shape> now = touched.size() + drawn.size() > CHUNK ? sketch.getMap() : null;
+		Chunk[] before = keyframes.get(keyframes.size() - 1).chunks;
+		Set<Chunk> changed = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Chunk, Boolean>());
+		for (long id : touched) changed.add(chunkOf.get(id));
+		for (long id : deleted) changed.add(chunkOf.remove(id));
+		List<Chunk> chunks = new ArrayList<Chunk>(before.length + 1);
+		List<Long> ids = new ArrayList<Long>(CHUNK);		// shapes gathered for the next chunk to make
+		List<String> forms = new ArrayList<String>(CHUNK);
+		for (Chunk old : before) {
+			if (changed.contains(old)) {
+				for (int k = 0; k < old.ids.length; k++) {
+					long id = old.ids[k];
+					if (deleted.contains(id)) continue;
+					ids.add(id);
+					forms.add(touched.contains(id) ? form(id, now) : old.forms[k]);
+					if (ids.size() == CHUNK) flush(ids, forms, chunks);
+				}
+				continue;
+			}
+			if (ids.isEmpty()) {
+				chunks.add(old);	// shared
+				continue;
+			}
+			if (ids.size() >= CHUNK / 2) {
+				flush(ids, forms, chunks);
+				chunks.add(old);
+				continue;
+			}
+			// too few gathered to stand alone: take in this chunk, splitting the lot in two if it won't fit in one
+			int total = ids.size() + old.ids.length;
+			int first = total <= CHUNK ? total : total / 2;
+			for (int k = 0; k < old.ids.length; k++) {
+				ids.add(old.ids[k]);
+				forms.add(old.forms[k]);
+				if (ids.size() == first) {
+					flush(ids, forms, chunks);
+					first = total - first;
+				}
+			}
+		}
+		// shapes drawn since go on top, filling up the last chunk first
+		if (ids.isEmpty() && !chunks.isEmpty() && !drawn.isEmpty() && chunks.get(chunks.size() - 1).ids.length < CHUNK) {
+			Chunk tail = chunks.remove(chunks.size() - 1);
+			for (int k = 0; k < tail.ids.length; k++) {
+				ids.add(tail.ids[k]);
+				forms.add(tail.forms[k]);
+			}
+		}
+		for (long id : drawn) {
+			String form = form(id, now);
+			if (form == null) continue;		// imported and deleted again
+			ids.add(id);
+			forms.add(form);
+			if (ids.size() == CHUNK) flush(ids, forms, chunks);
+		}
+		if (!ids.isEmpty()) flush(ids, forms, chunks);
+		touched.clear();
+		deleted.clear();
+		drawn.clear();
+		bytesSince = 0;
+		long made = 0;
+		Set<Chunk> kept = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Chunk, Boolean>());
+		kept.addAll(Arrays.asList(before));
+		for (Chunk chunk : chunks) {
+			if (!kept.contains(chunk)) made += chunk.bytes;
+		}
+		keyframes.add(new Keyframe(seq, chunks.toArray(new Chunk[0]), made));
+		bytes += made;
+		keyframeNanos.record(System.nanoTime() - begin);
+	}
+
+	/**
+	 * A shape's form as it is now, or null if there is no such shape
+	 * @param now The board's shapes by ID, or null to ask the sketch
+	 */
+	private String form(long id, Map<Long, Shape> now) {
+		Shape shape = now != null ? now.get(id) : sketch.getShapeById(id);
+		return shape == null ? null : shape.toString();
+	}
+
+	/**
+	 * The keyframe at or before a seq
+	 * @throws IllegalArgumentException if the seq is before the history or after its end
+	 */
+	private synchronized Keyframe floor(long seq) {
+		return keyframes.get(floorIndex(seq));
+	}
+
+	private int floorIndex(long seq) {
+		if (keyframes.isEmpty() || seq < getFirstSeq() || seq > getLastSeq()) {
+			throw new IllegalArgumentException("seq " + seq + " is outside the history");
+		}
+		int lo = 0, hi = keyframes.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) / 2;
+			if (keyframes.get(mid).seq <= seq) lo = mid;
+			else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * The ops from just after one seq up to another, across keyframes if need be,
+	 * copied so they can be replayed outside the lock
+	 */
+	private synchronized List<String> ops(long after, long upTo) {
+		List<String> ops = new ArrayList<String>((int) (upTo - after));
+		for (int i = floorIndex(after); after < upTo; i++) {
+			Keyframe keyframe = keyframes.get(i);
+			long end = Math.min(upTo, keyframe.seq + keyframe.ops.size());
+			ops.addAll(keyframe.ops.subList((int) (after - keyframe.seq), (int) (end - keyframe.seq)));
+			after = end;
+		}
+		return ops;
+	}
+
+	/**
+	 * The board as it stood once the op with the given seq had been applied
+	 * @throws IllegalArgumentException if the seq is outside the history
+	 */
+	public Sketch at(long seq) {
+		return new Player().seek(seq);
+	}
+
+	/**
+	 * Plays through history, e.g. to scrub back and forth or to replay a session; one thread at a time
+	 */
+	public class Player {
+		private Sketch board;				// as of position; null before the first seek
+		private long position = -1;
+
+		/**
+		 * Moves to a seq, stepping forward from where the player is unless that means replaying more
+		 * than from the keyframe before the seq and more than an interval
+		 * @return The board as of the seq, which the player goes on changing with later seeks
+		 * @throws IllegalArgumentException if the seq is outside the history
+		 */
+		public Sketch seek(long seq) {
+			long begin = System.nanoTime();
+			Keyframe keyframe = floor(seq);
+			if (board == null || seq < position || position < getFirstSeq()
+					|| (position < keyframe.seq && seq - position > INTERVAL)) {
+				board = keyframe.load();
+				position = keyframe.seq;
+			}
+			OpTokenizer op = new OpTokenizer();
+			for (String line : ops(position, seq)) {
+				op.reset(line);
+				op.nextLong();
+				op.nextInt();
+				op.nextInt();
+				board.apply(op);
+			}
+			position = seq;
+			seekNanos.record(System.nanoTime() - begin);
+			return board;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+	}
+
+	public Player player() {
+		return new Player();
+	}
+
+	/**
+	 * The earliest seq that can be gone back to, or -1 before the history starts
+	 */
+	public synchronized long getFirstSeq() {
+		return keyframes.isEmpty() ? -1 : keyframes.get(0).seq;
+	}
+
+	/**
+	 * The latest seq recorded, or -1 before the history starts
+	 */
+	public synchronized long getLastSeq() {
+		if (keyframes.isEmpty()) return -1;
+		Keyframe last = keyframes.get(keyframes.size() - 1);
+		return last.seq + last.ops.size();
+	}
+
+	public synchronized int getKeyframes() {
+		return keyframes.size();
+	}
+
+	public synchronized long getOps() {
+		return ops;
+	}
+
+	/**
+	 * What the history holds, about, in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public Histogram getSeekHistogram() {
+		return seekNanos;
+	}
+
+	public Histogram getKeyframeHistogram() {
+		return keyframeNanos;
+	}
+}
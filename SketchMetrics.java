@@ -0,0 +1,306 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics for a SketchServer: connected clients, op rates, outbound queue depth,
+ * broadcast fan-out latency, join snapshots, thumbnails, history, Sketch lock hold times, for a sharded sketch edits not yet applied,
+ * and replication lag, as seen by a leader of its followers and by a follower of its leader.
+ * Recording only touches LongAdders and lock-free Histograms; all aggregation happens when read,
+ * through JMX (see SketchMetricsMBean) or the text endpoint (see HttpEndpoint).
+ */
+public class SketchMetrics implements SketchMetricsMBean {
+	private static final String[] OPS = OpTokenizer.OPS;
+
+	private final SketchServer server;							// for connection gauges
+	private final LongAdder[] opCounts = new LongAdder[OPS.length];
+	private final long[] lastCounts = new long[OPS.length];	// op counts at the last rate computation
+	private final double[] rates = new double[OPS.length];		// ops/sec over the last completed window
+	private long lastRateTime = System.nanoTime();
+
+	private final Histogram broadcastNanos = new Histogram();	// time to hand one message to every client
+	private final Histogram snapshotBytes = new Histogram();	// size of the state sent on join
+	private final Histogram joinNanos = new Histogram();		// from accept to snapshot sent
+	private final Histogram lockHoldNanos = new Histogram();	// time spent inside Sketch's monitor
+	private final Histogram throttleNanos = new Histogram();	// pauses in reading from clients over their limits
+	private final LongAdder previews = new LongAdder();			// previews passed on, of shapes being drawn
+	private final LongAdder resumes = new LongAdder();			// reconnecting clients brought up to date without a snapshot
+
+	public SketchMetrics(SketchServer server) {
+		this.server = server;
+		for (int i = 0; i < OPS.length; i++) opCounts[i] = new LongAdder();
+	}
+
+	/**
+	 * Counts one op received from a client
+	 * @param op The op's code, as given by OpTokenizer
+	 */
+	public void countOp(int op) {
+		opCounts[op].increment();
+	}
+
+	/**
+	 * Counts a preview passed on
+	 */
+	public void countPreview() {
+		previews.increment();
+	}
+
+	/**
+	 * Counts a client that reconnected and resumed its session
+	 */
+	public void countResume() {
+		resumes.increment();
+	}
+
+	public Histogram getBroadcastHistogram() {
+		return broadcastNanos;
+	}
+
+	public Histogram getSnapshotHistogram() {
+		return snapshotBytes;
+	}
+
+	public Histogram getJoinHistogram() {
+		return joinNanos;
+	}
+
+	public Histogram getLockHoldHistogram() {
+		return lockHoldNanos;
+	}
+
+	public Histogram getThrottleHistogram() {
+		return throttleNanos;
+	}
+
+	/**
+	 * Registers this object with the platform MBean server, under SketchServer:type=Metrics
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("SketchServer:type=Metrics"));
+	}
+
+	/**
+	 * Rolls the per-op rates forward if at least a second has passed since the last roll
+	 */
+	private synchronized double rate(int op) {
+		long now = System.nanoTime();
+		long elapsed = now - lastRateTime;
+		if (elapsed >= 1_000_000_000L) {
+			for (int i = 0; i < OPS.length; i++) {
+				long count = opCounts[i].sum();
+				rates[i] = (count - lastCounts[i]) * 1e9 / elapsed;
+				lastCounts[i] = count;
+			}
+			lastRateTime = now;
+		}
+		return rates[op];
+	}
+
+	@Override
+	public int getConnectedClients() {
+		return server.getCommunicators().size();
+	}
+
+	@Override
+	public double getDrawOpsPerSecond() {
+		return rate(0);
+	}
+
+	@Override
+	public double getMoveOpsPerSecond() {
+		return rate(1);
+	}
+
+	@Override
+	public double getRecolorOpsPerSecond() {
+		return rate(2);
+	}
+
+	@Override
+	public double getDeleteOpsPerSecond() {
+		return rate(3);
+	}
+
+	@Override
+	public int getMaxOutboundQueueDepth() {
+		int max = 0;
+		for (SketchServerCommunicator comm : server.getCommunicators()) {
+			max = Math.max(max, comm.getOutboundQueueDepth());
+		}
+		return max;
+	}
+
+	@Override
+	public int getTotalOutboundQueueDepth() {
+		int total = 0;
+		for (SketchServerCommunicator comm : server.getCommunicators()) {
+			total += comm.getOutboundQueueDepth();
+		}
+		return total;
+	}
+
+	@Override
+	public int getThrottledClients() {
+		int throttled = 0;
+		for (SketchServerCommunicator comm : server.getCommunicators()) {
+			if (comm.isThrottled()) throttled++;
+		}
+		return throttled;
+	}
+
+	@Override
+	public long getThrottleEvents() {
+		return throttleNanos.getCount();
+	}
+
+	@Override
+	public long getBroadcastP50Micros() {
+		return broadcastNanos.valueAtPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getBroadcastP99Micros() {
+		return broadcastNanos.valueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getBroadcastMaxMicros() {
+		return broadcastNanos.getMax() / 1000;
+	}
+
+	@Override
+	public long getSnapshotP99Bytes() {
+		return snapshotBytes.valueAtPercentile(99);
+	}
+
+	@Override
+	public long getPreviews() {
+		return previews.sum();
+	}
+
+	@Override
+	public long getResumes() {
+		return resumes.sum();
+	}
+
+	@Override
+	public long getSnapshotEncodes() {
+		return server.getSnapshotCache().getEncodes();
+	}
+
+	@Override
+	public long getSnapshotCacheHits() {
+		return server.getSnapshotCache().getHits();
+	}
+
+	@Override
+	public long getThumbnailRenders() {
+		return server.getThumbnails().getRenders();
+	}
+
+	@Override
+	public long getThumbnailCacheHits() {
+		return server.getThumbnails().getHits();
+	}
+
+	@Override
+	public long getJoinP99Micros() {
+		return joinNanos.valueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public int getFollowers() {
+		return server.getFollowers().size();
+	}
+
+	@Override
+	public long getMaxFollowerLagOps() {
+		long seq = server.getSeq(), lag = 0;
+		for (SketchServerCommunicator follower : server.getFollowers()) lag = Math.max(lag, seq - follower.getAckedSeq());
+		return lag;
+	}
+
+	@Override
+	public long getReplicationLagMillis() {
+		Follower following = server.getFollowing();
+		return following == null ? -1 : following.getLagMillis();
+	}
+
+	@Override
+	public int getShardBacklog() {
+		Sketch sketch = server.getSketch();
+		return sketch instanceof ShardedSketch ? ((ShardedSketch) sketch).getBacklog() : 0;
+	}
+
+	@Override
+	public long getLockHoldP99Micros() {
+		return lockHoldNanos.valueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getLockHoldMaxMicros() {
+		return lockHoldNanos.getMax() / 1000;
+	}
+
+	/**
+	 * Plain-text dump of every metric, one per line, for the HTTP endpoint
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("connected_clients ").append(getConnectedClients()).append("\n");
+		for (int i = 0; i < OPS.length; i++) {
+			sb.append("ops_total{op=").append(OPS[i]).append("} ").append(opCounts[i].sum()).append("\n");
+			sb.append("ops_per_sec{op=").append(OPS[i]).append("} ").append(String.format("%.1f", rate(i))).append("\n");
+		}
+		List<SketchServerCommunicator> comms = server.getCommunicators();
+		for (SketchServerCommunicator comm : comms) {
+			sb.append("outbound_queue_depth{client=").append(comm.getName()).append("} ")
+					.append(comm.getOutboundQueueDepth()).append("\n");
+			sb.append("throttled{client=").append(comm.getName()).append("} ")
+					.append(comm.isThrottled() ? 1 : 0).append("\n");
+		}
+		sb.append("throttled_clients ").append(getThrottledClients()).append("\n");
+		sb.append("throttle_pause_us ").append(throttleNanos.summary(1000)).append("\n");
+		sb.append("broadcast_fanout_us ").append(broadcastNanos.summary(1000)).append("\n");
+		sb.append("snapshot_bytes ").append(snapshotBytes.summary(1)).append("\n");
+		sb.append("snapshot_encodes_total ").append(getSnapshotEncodes()).append("\n");
+		sb.append("snapshot_cache_hits_total ").append(getSnapshotCacheHits()).append("\n");
+		sb.append("join_us ").append(joinNanos.summary(1000)).append("\n");
+		sb.append("resumes_total ").append(resumes.sum()).append("\n");
+		sb.append("previews_total ").append(previews.sum()).append("\n");
+		ThumbnailRenderer thumbnails = server.getThumbnails();
+		sb.append("thumbnail_renders_total ").append(thumbnails.getRenders()).append("\n");
+		sb.append("thumbnail_cache_hits_total ").append(thumbnails.getHits()).append("\n");
+		sb.append("thumbnail_collapsed_total ").append(thumbnails.getCollapsed()).append("\n");
+		sb.append("thumbnail_cache_bytes ").append(thumbnails.getCachedBytes()).append("\n");
+		DragRelay drags = server.getDragRelay();
+		if (drags != null) {
+			sb.append("drag_datagrams_relayed_total ").append(drags.getRelayed()).append("\n");
+			sb.append("drag_datagrams_rejected_total ").append(drags.getRejected()).append("\n");
+		}
+		SketchHistory history = server.getHistory();
+		sb.append("history_keyframes ").append(history.getKeyframes()).append("\n");
+		sb.append("history_ops ").append(history.getOps()).append("\n");
+		sb.append("history_keyframe_us ").append(history.getKeyframeHistogram().summary(1000)).append("\n");
+		sb.append("history_seek_us ").append(history.getSeekHistogram().summary(1000)).append("\n");
+		sb.append("sketch_lock_hold_us ").append(lockHoldNanos.summary(1000)).append("\n");
+		sb.append("shard_backlog ").append(getShardBacklog()).append("\n");
+		long seq = server.getSeq();
+		for (SketchServerCommunicator follower : server.getFollowers()) {
+			sb.append("follower_lag_ops{follower=").append(follower.getName()).append("} ")
+					.append(seq - follower.getAckedSeq()).append("\n");
+		}
+		Follower following = server.getFollowing();
+		if (following != null) {
+			sb.append("replication_promoted ").append(following.isPromoted() ? 1 : 0).append("\n");
+			sb.append("replication_lag_ms ").append(following.getLagMillis()).append("\n");
+			sb.append("replication_silence_ms ").append(following.getSilenceMillis()).append("\n");
+			sb.append("replication_leader_seq ").append(following.getLeaderSeq()).append("\n");
+			sb.append("replication_applied_seq ").append(seq).append("\n");
+		}
+		return sb.toString();
+	}
+}
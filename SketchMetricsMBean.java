@@ -0,0 +1,38 @@
+/**
+ * JMX view of SketchMetrics; latencies are reported in microseconds
+ */
+public interface SketchMetricsMBean {
+	public int getConnectedClients();
+
+	public double getDrawOpsPerSecond();
+	public double getMoveOpsPerSecond();
+	public double getRecolorOpsPerSecond();
+	public double getDeleteOpsPerSecond();
+
+	public int getMaxOutboundQueueDepth();
+	public int getTotalOutboundQueueDepth();
+
+	public int getThrottledClients();
+	public long getThrottleEvents();
+
+	public long getBroadcastP50Micros();
+	public long getBroadcastP99Micros();
+	public long getBroadcastMaxMicros();
+
+	public long getSnapshotP99Bytes();
+	public long getSnapshotEncodes();
+	public long getSnapshotCacheHits();
+	public long getJoinP99Micros();
+	public long getResumes();
+	public long getPreviews();
+	public long getThumbnailRenders();
+	public long getThumbnailCacheHits();
+
+	public long getLockHoldP99Micros();
+	public long getLockHoldMaxMicros();
+	public int getShardBacklog();
+
+	public int getFollowers();
+	public long getMaxFollowerLagOps();
+	public long getReplicationLagMillis();
+}
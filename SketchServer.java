@@ -5,22 +5,181 @@ import java.io.*;
 /**
  * A server to handle sketches: getting requests from the clients,
  * updating the overall state, and passing them on to the clients
+ *
+ * A second server can follow this one as a hot standby (see Follower): it connects as a follower, gets the snapshot
+ * and then every op as sequenced, along with each client id handed out and a heartbeat every HEARTBEAT_MILLIS,
+ * which it acknowledges so the leader can report how far behind it is. If the leader goes, the follower takes over
+ * with the same board, seq, epoch and recent ops, so editors reconnecting to it resume rather than reload.
  */
 public class SketchServer {
 	private ServerSocket listen;						// for accepting connections
 	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
+	private ArrayList<SketchServerCommunicator> followers = new ArrayList<SketchServerCommunicator>();	// standby servers
+	private Follower following;							// while this server is a standby, how it follows the leader
+	private static final boolean COLUMNAR = Boolean.getBoolean("sketch.columnar");	// keep shapes off-heap, for huge boards
+	private static final boolean UDP = Boolean.getBoolean("sketch.udp");	// relay drags and previews over datagrams too
+	private static final int HEARTBEAT_MILLIS = 500;	// how often followers hear from the leader when all is quiet
+	private static final int IMPORT_CHUNK = Integer.getInteger("sketch.import.chunk", 1000);	// shapes per import op at most
+	private static final int MAX_PREVIEWS = 16;			// previews open at once per client, at most
+	private static final int SHARDS = Integer.getInteger("sketch.shards", 0);	// apply ops on this many threads, for busy boards
+	private static final int RECENT = Integer.getInteger("sketch.resume.ops", 10000);	// ops kept for clients resuming
 	private Sketch sketch;								// the state of the world
-	
+	private SketchMetrics metrics;						// what the server has been up to
+	private SnapshotCache snapshots;					// what joining clients are sent, made once per version
+	private SketchHistory history;						// every op and periodic keyframes, to go back to any seq
+	private ThumbnailRenderer thumbnails;				// renders the board to PNG, kept per version and size
+	private DragRelay drags;							// passes drag updates between editors, if they go by datagram
+	private long seq = 0;								// number of ops applied to the sketch so far
+	private int clientIds = 0;							// client ids handed out so far
+	private final OpTokenizer tokens = new OpTokenizer();	// reads the message being handled, under the server's lock
+	private String epoch = Long.toString(System.currentTimeMillis(), 36);	// tells this run of the board from others
+	private final String[] recent = new String[RECENT];	// the last RECENT ops as broadcast, by seq % RECENT
+	private long recentFrom = 0;						// recent holds every op after this one (that is still in it)
+	private int[] lastClientSeqs = new int[16];			// by client id, the last clientSeq handled from that client
+
 	public SketchServer(ServerSocket listen) {
 		this.listen = listen;
-		sketch = new Sketch();
+		sketch = SHARDS > 1 ? new ShardedSketch(SHARDS) : COLUMNAR ? new ColumnarSketch() : new Sketch();
 		comms = new ArrayList<SketchServerCommunicator>();
+		snapshots = new SnapshotCache(sketch);
+		history = new SketchHistory(sketch);
+		thumbnails = new ThumbnailRenderer(sketch);
+		metrics = new SketchMetrics(this);
+		sketch.setLockHoldHistogram(metrics.getLockHoldHistogram());
 	}
 
 	public Sketch getSketch() {
 		return sketch;
 	}
-	
+
+	/**
+	 * The snapshot for a joining client; only under the server's lock, so that it matches getSeq()
+	 */
+	public MessageChannel.Block getSnapshot() {
+		return snapshots.get();
+	}
+
+	public SnapshotCache getSnapshotCache() {
+		return snapshots;
+	}
+
+	/**
+	 * The board's history, e.g. getHistory().at(seq) for how it stood after that op
+	 */
+	public SketchHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * Renders the board as PNG, e.g. getThumbnails().png(320, 240); needs no display
+	 */
+	public ThumbnailRenderer getThumbnails() {
+		return thumbnails;
+	}
+
+	/**
+	 * Starts passing drag updates between editors over datagrams
+	 * @param port The UDP port, by convention the same number as the TCP one
+	 */
+	public void startDragRelay(int port) throws IOException {
+		drags = new DragRelay(port, this);
+		drags.start();
+	}
+
+	/**
+	 * The drag relay, or null if drags only go as ops
+	 */
+	public DragRelay getDragRelay() {
+		return drags;
+	}
+
+	public SketchMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * The sequence number of the last op applied to the sketch
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Hands out a new id for a connecting client, which tags the ops it sends
+	 */
+	public synchronized int nextClientId() {
+		++clientIds;
+		for (SketchServerCommunicator follower : followers) follower.send("client " + clientIds);
+		return clientIds;
+	}
+
+	/**
+	 * The last client id handed out
+	 */
+	public synchronized int getClientIds() {
+		return clientIds;
+	}
+
+	/**
+	 * Identifies this run of the server, so a client resuming a session knows it is talking to the same one
+	 */
+	public String getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * The last client sequence number handled from the client, so it knows what to send again after reconnecting
+	 */
+	public synchronized int getLastClientSeq(int clientId) {
+		return clientId < lastClientSeqs.length ? lastClientSeqs[clientId] : 0;
+	}
+
+	/**
+	 * Every client's last client sequence number handled, for a follower to take on: "<clientId>:<clientSeq>"
+	 * comma-separated, or "-" if none
+	 */
+	public synchronized String getLastClientSeqs() {
+		StringBuilder seqs = new StringBuilder();
+		for (int clientId = 1; clientId < lastClientSeqs.length; clientId++) {
+			if (lastClientSeqs[clientId] == 0) continue;
+			if (seqs.length() > 0) seqs.append(',');
+			seqs.append(clientId).append(':').append(lastClientSeqs[clientId]);
+		}
+		return seqs.length() > 0 ? seqs.toString() : "-";
+	}
+
+	/**
+	 * Whether a client of this run of the server that has seen the ops up to lastSeq can be brought up to date
+	 * from the recent ops alone, rather than with a snapshot
+	 */
+	public synchronized boolean canResume(String epoch, int clientId, long lastSeq) {
+		return this.epoch.equals(epoch) && clientId >= 1 && clientId <= clientIds
+				&& lastSeq >= recentFrom && lastSeq <= seq && seq - lastSeq <= RECENT;
+	}
+
+	/**
+	 * The ops after lastSeq, as they were broadcast, one per line; only for a lastSeq that canResume
+	 */
+	public synchronized String opsSince(long lastSeq) {
+		StringBuilder ops = new StringBuilder();
+		for (long s = lastSeq + 1; s <= seq; s++) {
+			ops.append(recent[(int) (s % RECENT)]).append('\n');
+		}
+		return ops.toString();
+	}
+
+	/**
+	 * Hands a resuming client's id over to its new connection, dropping any old one the server hasn't noticed is dead
+	 */
+	public synchronized void reclaim(SketchServerCommunicator comm) {
+		for (SketchServerCommunicator other : new ArrayList<SketchServerCommunicator>(comms)) {
+			if (other != comm && other.getClientId() == comm.getClientId()) {
+				comms.remove(other);
+				other.disconnect();
+			}
+		}
+	}
+
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
@@ -46,18 +205,336 @@ public class SketchServer {
 	 */
 	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
 		comms.remove(comm);
+		followers.remove(comm);
+		// its shapes being drawn will never be drawn now
+		for (long id : comm.getPreviews()) broadcast("unpreview " + id);
+		comm.getPreviews().clear();
+		if (drags != null) {
+			for (SketchServerCommunicator other : comms) {
+				if (other.getClientId() == comm.getClientId()) return;	// resumed on another connection
+			}
+			drags.forget(comm.getClientId());
+		}
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Turns a connection that has just joined into one with a standby server, which gets ops but not previews
+	 */
+	public synchronized void addFollower(SketchServerCommunicator comm) {
+		comms.remove(comm);
+		followers.add(comm);
+	}
+
+	/**
+	 * A copy of the connections with standby servers, for reporting
+	 */
+	public synchronized List<SketchServerCommunicator> getFollowers() {
+		return new ArrayList<SketchServerCommunicator>(followers);
+	}
+
+	/**
+	 * Sends followers where the sequence stands, for them to acknowledge; in order with the ops broadcast
+	 */
+	public synchronized void heartbeat() {
+		String beat = "heartbeat " + seq + " " + System.currentTimeMillis();
+		for (SketchServerCommunicator follower : followers) follower.send(beat);
+	}
+
+	/**
+	 * Starts sending followers heartbeats
+	 */
+	public void startHeartbeats() {
+		Thread beats = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(HEARTBEAT_MILLIS);
+					heartbeat();
+				}
+			}
+			catch (InterruptedException e) {
+				// shutting down
+			}
+		}, "heartbeats");
+		beats.setDaemon(true);
+		beats.start();
+	}
+
+	/**
+	 * Takes on the state a leader gave this server, as its follower, on joining
+	 * @param clientId The last client id the leader had handed out, so that this server hands out none of them again
+	 * @param seq The leader's seq, which the snapshot that follows is as of
+	 * @param epoch The leader's epoch, kept on promotion so that editors can resume
+	 * @param clientSeqs Each client's last clientSeq the leader had handled, as from getLastClientSeqs(),
+	 * so that editors resuming here are told which of their ops need sending again
+	 */
+	public synchronized void followed(int clientId, long seq, String epoch, String clientSeqs) {
+		this.clientIds = Math.max(clientIds, clientId);
+		if (!clientSeqs.equals("-")) {
+			for (String pair : clientSeqs.split(",")) {
+				int colon = pair.indexOf(':');
+				int client = Integer.parseInt(pair.substring(0, colon));
+				if (client >= lastClientSeqs.length) {
+					lastClientSeqs = Arrays.copyOf(lastClientSeqs, Math.max(client + 1, lastClientSeqs.length * 2));
+				}
+				lastClientSeqs[client] = Integer.parseInt(pair.substring(colon + 1));
+			}
+		}
+		this.seq = seq;
+		this.recentFrom = seq;
+		this.epoch = epoch;
+		history.clear();	// starts again from the leader's board, at the first op after the snapshot
+	}
+
+	/**
+	 * Applies a line from the leader, as its follower: a snapshot "draw", a sequenced op, or a client id handed out
+	 */
+	public synchronized void replicate(String line) {
+		OpTokenizer op = tokens.reset(line);
+		if (line.startsWith("client ")) {
+			op.skip();
+			clientIds = Math.max(clientIds, op.nextInt());
+			return;
+		}
+		if (!op.atNumber()) {
+			sketch.apply(op);	// the snapshot
+			return;
+		}
+		long opSeq = op.nextLong();
+		if (opSeq <= seq) return;
+		int clientId = op.nextInt(), clientSeq = op.nextInt();
+		history.start(seq);
+		long id = sketch.apply(op);
+		if (id >>> 32 == 0) sketch.ID = Math.max(sketch.ID, id + 1);	// numbered by the leader for an older client
+		seq = opSeq;
+		recent[(int) (seq % RECENT)] = line;
+		history.record(seq, line);
+		if (clientSeq > 0) {
+			if (clientId >= lastClientSeqs.length) {
+				lastClientSeqs = Arrays.copyOf(lastClientSeqs, Math.max(clientId + 1, lastClientSeqs.length * 2));
+			}
+			lastClientSeqs[clientId] = clientSeq;
+		}
+		clientIds = Math.max(clientIds, clientId);
+	}
+
+	/**
+	 * While a standby, how this server follows its leader; null once leading
+	 */
+	public Follower getFollowing() {
+		return following;
+	}
+
+	/**
+	 * A copy of the current communicators, for reporting
+	 */
+	public synchronized List<SketchServerCommunicator> getCommunicators() {
+		return new ArrayList<SketchServerCommunicator>(comms);
+	}
+
+	/**
+	 * Applies a message from a client to the sketch and passes the result on to everyone.
+	 * Clients send "<clientSeq> <op>", where op is "draw <id> <shape>", "move <id> <dx> <dy>",
+	 * "recolor <id> <rgb>" or "delete <id>", and clientSeq counts that client's ops.
+	 * A client picks the ids of the shapes it draws from its own range (see Sketch.id), so draws need no round trip.
+	 * Move, recolor and delete may name several ids, comma-separated; such a batch is applied under one hold
+	 * of the sketch's lock and passed on as the one message.
+	 * Everyone gets back "<seq> <clientId> <clientSeq> <op>", with seq giving the one order all replicas apply ops in.
+	 * Previews of shapes being drawn are passed on to the others as they are, without a seq (see preview()).
+	 * An op whose clientSeq has already been handled (sent again by a client resuming after a reconnect) is ignored.
+	 * Ops are sequenced and passed on under the server's lock, one at a time, with or without a ShardedSketch: that
+	 * only hands applying them off to the shards (and shares out the queries), so sequencing and fan-out stay serial.
+	 * @param from The client the message came from
+	 * @param msg The message as received
+	 * @return The id of the shape affected, or -1 if the message was ignored
+	 */
+	public synchronized long handle(SketchServerCommunicator from, String msg) {
+		if (msg.isEmpty()) return -1;
+		if (LivePreviews.isPreview(msg)) return preview(from, msg);
+		try {
+			OpTokenizer op = tokens.reset(msg);
+			int clientSeq = op.atNumber() ? op.nextInt() : 0;	// older clients send no clientSeq
+			if (clientSeq > 0) {
+				int clientId = from.getClientId();
+				if (clientId >= lastClientSeqs.length) {
+					lastClientSeqs = Arrays.copyOf(lastClientSeqs, Math.max(clientId + 1, lastClientSeqs.length * 2));
+				}
+				if (clientSeq <= lastClientSeqs[clientId]) return -1;	// already handled
+				lastClientSeqs[clientId] = clientSeq;
+			}
+			int verb = op.position();
+			int code = op.nextOp();
+			if (code == OpTokenizer.IMPORT) {
+				System.err.println("ignoring import from a client: " + from.getName());
+				return -1;
+			}
+			metrics.countOp(code);
+			boolean draw = code == OpTokenizer.DRAW;
+			boolean numbered = draw && op.atWord();		// an older client's draw, without an id
+			if (draw && !numbered && op.nextLong() >>> 32 != from.getClientId()) {
+				System.err.println("ignoring draw outside the client's id range: " + msg);
+				return -1;
+			}
+			String applied = verb > 0 ? msg.substring(verb) : msg;
+
+			EditEvent apply = new EditEvent.Apply();
+			apply.begin();
+			op.seek(verb);
+			history.start(seq);
+			long id = sketch.apply(op);
+			if (numbered) {
+				applied = "draw " + id + applied.substring(4);	// numbered in client 0's range
+			}
+			seq++;
+			apply.of(OpTokenizer.OPS[code], id).commit();
+			if (draw) from.getPreviews().remove(id);
+
+			EditEvent broadcast = new EditEvent.Broadcast();
+			broadcast.begin();
+			String sequenced = seq + " " + from.getClientId() + " " + clientSeq + " " + applied;
+			recent[(int) (seq % RECENT)] = sequenced;
+			history.record(seq, sequenced);
+			broadcast(sequenced);
+			broadcast.of(OpTokenizer.OPS[code], id).commit();
+			return id;
+		}
+		catch (RuntimeException e) {
+			System.err.println("ignoring malformed message: " + msg);
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds many shapes to the sketch at once, on top, as imported from a file (see ShapeImporter), and passes them
+	 * on to everyone as ops "<seq> 0 0 import <firstId> <count> <shapes>" of up to IMPORT_CHUNK shapes each
+	 * (fewer if they would make a line of over half MessageChannel.MAX_LINE), rather than an op per shape or one op
+	 * too big for editors to read. They are numbered in client 0's range, one after another, and added and
+	 * sequenced under one hold of the server's lock, so nothing comes between the ops.
+	 * @param shapes The shapes, bottom first
+	 * @return The id of the first shape; the rest follow on from it
+	 */
+	public long importShapes(Shape[] shapes) {
+		// the bulk of the work, encoding, outside the lock
+		List<Shape[]> chunks = new ArrayList<Shape[]>();
+		List<String> encoded = new ArrayList<String>();
+		StringBuilder chunk = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < shapes.length; i++) {
+			String form = Sketch.importOp(new Shape[] {shapes[i]});
+			if (i > start && (i - start == IMPORT_CHUNK || chunk.length() + form.length() > MessageChannel.MAX_LINE / 2)) {
+				chunks.add(Arrays.copyOfRange(shapes, start, i));
+				encoded.add(chunk.toString());
+				chunk.setLength(0);
+				start = i;
+			}
+			if (chunk.length() > 0) chunk.append(' ');
+			chunk.append(form);
+		}
+		chunks.add(Arrays.copyOfRange(shapes, start, shapes.length));
+		encoded.add(chunk.toString());
+		synchronized (this) {
+			long first = -1;
+			for (int c = 0; c < chunks.size(); c++) {
+				Shape[] part = chunks.get(c);
+				EditEvent apply = new EditEvent.Apply();
+				apply.begin();
+				history.start(seq);
+				long id = sketch.add(part);
+				if (first < 0) first = id;
+				seq++;
+				metrics.countOp(OpTokenizer.IMPORT);
+				apply.of("import", id).commit();
+
+				EditEvent broadcast = new EditEvent.Broadcast();
+				broadcast.begin();
+				String sequenced = seq + " 0 0 import " + id + " " + part.length + (part.length > 0 ? " " : "") + encoded.get(c);
+				recent[(int) (seq % RECENT)] = sequenced;
+				history.record(seq, sequenced);
+				broadcast(sequenced);
+				broadcast.of("import", id).commit();
+			}
+			return first;
+		}
+	}
+
+	/**
+	 * Passes a client's preview of a shape it is drawing on to everyone else, without applying or keeping it
+	 * (see LivePreviews): "preview <id> <shape>" or "extend <id> <x1> <y1> <x2> <y2> ...".
+	 * The server only remembers which previews each client has open, to end them if it disconnects first.
+	 * @return The id of the shape previewed, or -1 if the message was ignored
+	 */
+	private long preview(SketchServerCommunicator from, String msg) {
+		try {
+			OpTokenizer preview = tokens.reset(msg);
+			boolean extend = msg.startsWith("extend ");
+			preview.skip();
+			long id = preview.nextLong();
+			if (id >>> 32 != from.getClientId() || msg.startsWith("unpreview ")) return -1;
+			Set<Long> open = from.getPreviews();
+			if (extend) {
+				if (!open.contains(id) || preview.remaining() % 4 != 0) return -1;
+				while (preview.hasNext()) preview.nextInt();
+			}
+			else {
+				if (!open.contains(id) && open.size() >= MAX_PREVIEWS) return -1;
+				Sketch.parseShape(preview);
+				open.add(id);
+			}
+			metrics.countPreview();
+			for (SketchServerCommunicator comm : comms) {
+				if (comm != from) comm.send(msg);
+			}
+			return id;
+		}
+		catch (RuntimeException e) {
+			System.err.println("ignoring malformed preview: " + msg);
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends the message from the one communicator to all (including the originator), and to followers
 	 */
 	public synchronized void broadcast(String msg) {
+		long start = System.nanoTime();
 		for (SketchServerCommunicator comm : comms) {
 			comm.send(msg);
 		}
+		for (SketchServerCommunicator follower : followers) {
+			follower.send(msg);
+		}
+		metrics.getBroadcastHistogram().record(System.nanoTime() - start);
 	}
 	
+	/**
+	 * Starts a server on port 4242, or on the port given as the first argument.
+	 * With "--follow <host>:<port>" after that, starts as a standby following the server there instead,
+	 * and takes over as a server on its own port if that one fails. The port is bound from the start, so a port
+	 * that is taken shows at once, but not accepted on until the takeover; editors given both servers in order
+	 * (-Dsketch.servers=leader:4242,standby:4244) fail over to it and resume there.
+	 * The HTTP endpoint (metrics and the rest) is on port 4243, or sketch.metrics.port, so that two can run side by side;
+	 * it serves thumbnails of the board too, rendered headless unless java.awt.headless says otherwise,
+	 * takes shape files to import, e.g. curl --data-binary @board.txt http://localhost:4243/import
+	 * and shows the board as it was at any seq, e.g. curl 'http://localhost:4243/history?seq=1200'
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 4242;
+		SketchServer server = new SketchServer(null);
+		server.getMetrics().registerMBean();
+		HttpEndpoint endpoint = new HttpEndpoint(Integer.getInteger("sketch.metrics.port", 4243), server.getMetrics());
+		endpoint.serveThumbnails(server.getThumbnails());
+		endpoint.serveImports(server);
+		endpoint.serveHistory(server.getHistory());
+		endpoint.start();
+		server.listen = new ServerSocket(port);
+		if (args.length > 2 && args[1].equals("--follow")) {
+			String[] leader = args[2].split(":");
+			server.following = new Follower(server, leader[0], Integer.parseInt(leader[1]));
+			server.following.follow();		// until the leader fails
+			System.out.println("leader lost at seq " + server.getSeq() + "; taking over on port " + port);
+		}
+		if (UDP) server.startDragRelay(port);
+		server.startHeartbeats();
+		server.getConnections();
 	}
 }
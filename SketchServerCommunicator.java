@@ -1,18 +1,46 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
- * Handles communication between the server and one client, for SketchServer
+ * Handles communication between the server and one client, for SketchServer.
+ * Messages for the client are queued and written by a thread of the client's own, so a slow client never holds up
+ * whoever is broadcasting; one that falls a whole queue behind is disconnected.
  */
 public class SketchServerCommunicator extends Thread {
+	private static final int CAPACITY = Integer.getInteger("sketch.outbound.capacity", 4096);	// messages queued per client at most
+	private static final boolean COMPRESS = !Boolean.getBoolean("sketch.compress.disable");	// accept clients asking for deflate
+
+	// Per-client limits on what the server will read; a client over them is not read from until it is back
+	// under, so its socket buffers fill and TCP pushes back on it rather than the server queueing its work
+	private static final double OPS_PER_SEC = Double.parseDouble(System.getProperty("sketch.limit.ops", "500"));
+	private static final double OPS_BURST = Double.parseDouble(System.getProperty("sketch.limit.ops.burst", "1000"));
+	private static final double BYTES_PER_SEC = Double.parseDouble(System.getProperty("sketch.limit.bytes", "262144"));
+	private static final double BYTES_BURST = Double.parseDouble(System.getProperty("sketch.limit.bytes.burst", "1048576"));
+
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private MessageChannel channel;			// lines to and from client
 	private SketchServer server;			// handling communication for
+	private int clientId;					// tags this client's ops when they are passed on; set under the server's lock
+	private volatile boolean joined = false;					// whether broadcasts are queued for the client, behind its snapshot
+	private final long acceptedAt = System.nanoTime();			// when the client connected, for join time
+	private final ArrayBlockingQueue<String> outbound = new ArrayBlockingQueue<String>(CAPACITY);	// messages not yet written to client
+	private Thread writer;					// writes what is queued to the client, once it has its snapshot
+	private final TokenBucket opLimit = new TokenBucket(OPS_PER_SEC, OPS_BURST);		// messages read from client
+	private final TokenBucket byteLimit = new TokenBucket(BYTES_PER_SEC, BYTES_BURST);	// bytes read from client
+	private volatile boolean throttled = false;					// whether reading is paused to hold the client to its limits
+	private volatile long ackedSeq = 0;							// for a standby server, the last seq it has applied
+	private final Set<Long> previews = new HashSet<Long>();		// ids of the shapes the client is previewing; under the server's lock
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		this.clientId = server.nextClientId();
+		setName("client " + clientId + " " + sock.getRemoteSocketAddress());
 	}
 
 	/**
@@ -20,12 +48,118 @@ public class SketchServerCommunicator extends Thread {
 	 * @param msg
 	 */
 	public void send(String msg) {
-		out.println(msg);
+		if (!joined) return; // not yet past the snapshot; it will be in the snapshot instead
+		// once joined, queued even while the handshake is still being written, and written after it
+		if (outbound.offer(msg)) return;
+		System.err.println(getName() + ": outbound queue full; dropping the connection");
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * Number of messages queued for this client and not yet written; one that keeps growing means the client is stalling
+	 */
+	public int getOutboundQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Writes queued messages to the client until interrupted or the connection fails, flushing once per batch
+	 */
+	private void write() {
+		List<String> batch = new ArrayList<String>();
+		StringBuilder block = new StringBuilder();
+		try {
+			while (true) {
+				batch.add(outbound.take());
+				outbound.drainTo(batch);
+				for (String msg : batch) block.append(msg).append('\n');
+				channel.writeLines(block.toString());
+				batch.clear();
+				block.setLength(0);
+			}
+		}
+		catch (IOException e) {
+			// the connection is gone; run() notices and cleans up
+		}
+		catch (InterruptedException e) {
+			// the connection is done
+		}
+	}
+
+	/**
+	 * The host the client connects from
+	 */
+	public java.net.InetAddress getRemoteAddress() {
+		return sock.getInetAddress();
+	}
+
+	/**
+	 * For a standby server, the last seq it said it had applied
+	 */
+	public long getAckedSeq() {
+		return ackedSeq;
+	}
+
+	/**
+	 * Ids of the shapes the client has previewed but not yet drawn; only under the server's lock
+	 */
+	public Set<Long> getPreviews() {
+		return previews;
+	}
+
+	public int getClientId() {
+		return clientId;
 	}
-	
+
 	/**
-	 * Keeps listening for and handling (your code) messages from the client
+	 * Drops the connection, e.g. when its client has reconnected on another one
 	 */
+	public void disconnect() {
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * Whether reading from this client is paused because it went over its limits
+	 */
+	public boolean isThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * The client's channel, for its traffic counters
+	 */
+	public MessageChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Stops reading from the client for the given time
+	 */
+	private void throttle(long nanos) {
+		SketchMetrics metrics = server.getMetrics();
+		throttled = true;
+		metrics.getThrottleHistogram().record(nanos);
+		try {
+			Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+		}
+		catch (InterruptedException e) {
+			interrupt();
+		}
+		finally {
+			throttled = false;
+		}
+	}
+
 	/**
 	 * Keeps listening for and handling messages from the client.
 	 */
@@ -34,28 +168,113 @@ public class SketchServerCommunicator extends Thread {
 			System.out.println("someone connected");
 
 			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
 
-			// Tell the client the current state of the world
-			// TODO: YOUR CODE HERE
-			send(server.getSketch().toString());
+			// Handshake: the client opens with "hello deflate" or "hello plain", and hears back
+			// "welcome <deflate|plain> <clientId> <seq> <epoch>"; compress from here on if both want to.
+			// Then tell the client the current state of the world, one "draw" line per shape as of seq.
+			// A client reconnecting adds "resume <epoch> <clientId> <lastSeq>"; if the server still has every op
+			// since lastSeq, the client keeps its id and gets "... <epoch> resume <lastClientSeq>" and just those ops,
+			// and sends again whatever it sent after lastClientSeq.
+			// A standby server says "hello <deflate|plain> follow", joins like a client, and then only acknowledges;
+			// its welcome ends "clients <n> <clientSeqs>", the last client id handed out, as some may have been since
+			// its own, and each client's last clientSeq handled, as "<clientId>:<clientSeq>,..." or "-".
+			// What the client is to hear is settled under the server's lock, along with registering for broadcasts,
+			// so that no op slips in between the snapshot and the first broadcast; it is written once the lock
+			// is let go, with broadcasts meanwhile queued behind it, so a slow joiner holds up no one else.
+			String hello = channel.readLine();
+			if (hello == null) return;
+			String[] greeting = hello.split(" ");
+			boolean deflate = COMPRESS && greeting[0].equals("hello") && greeting.length > 1 && greeting[1].equals("deflate");
+			boolean resume = false;
+			boolean follow = greeting.length == 3 && greeting[0].equals("hello") && greeting[2].equals("follow");
+			String welcome;
+			String missed = null;						// when resuming, the ops since the client's last
+			MessageChannel.Block snapshot = null;		// otherwise the sketch as of the welcome's seq
+			synchronized (server) {
+				if (greeting.length == 6 && greeting[0].equals("hello") && greeting[2].equals("resume")) {
+					int resumeId = -1;
+					long lastSeq = -1;
+					try {
+						resumeId = Integer.parseInt(greeting[4]);
+						lastSeq = Long.parseLong(greeting[5]);
+					}
+					catch (NumberFormatException e) {
+						// can't resume that; join afresh
+					}
+					if (resumeId > 0 && server.canResume(greeting[3], resumeId, lastSeq)) {
+						resume = true;
+						clientId = resumeId;
+						setName("client " + clientId + " " + sock.getRemoteSocketAddress());
+						server.reclaim(this);
+						missed = server.opsSince(lastSeq);
+						server.getMetrics().countResume();
+					}
+				}
+				if (resume) {
+					welcome = "welcome " + (deflate ? "deflate " : "plain ") + clientId + " " + server.getSeq()
+							+ " " + server.getEpoch() + " resume " + server.getLastClientSeq(clientId);
+				}
+				else {
+					welcome = "welcome " + (deflate ? "deflate " : "plain ") + clientId + " " + server.getSeq()
+							+ " " + server.getEpoch() + (follow ? " clients " + server.getClientIds() + " " + server.getLastClientSeqs() : "");
+					snapshot = server.getSnapshot();	// shared with others joining at this version
+					server.getMetrics().getSnapshotHistogram().record(snapshot.size());
+				}
+				if (follow) server.addFollower(this);
+				joined = true;
+			}
+			channel.writeLine(welcome);
+			if (deflate) channel.enableCompression();
+			if (missed != null && !missed.isEmpty()) channel.writeLines(missed);
+			if (snapshot != null && snapshot.size() > 0) channel.writeBlock(snapshot);
+			// from here on only the writer writes, starting with whatever was broadcast since the lock
+			writer = new Thread(this::write, "outbound " + getName());
+			writer.setDaemon(true);
+			writer.start();
+			server.getMetrics().getJoinHistogram().record(System.nanoTime() - acceptedAt);
+			if (!hello.startsWith("hello ")) server.handle(this, hello); // an old client without a handshake
 
 			// Keep getting and handling messages from the client
-			// TODO: YOUR CODE HERE
 			String message;
-			while ((message = in.readLine()) != null) {
-				// Handle the message (not implemented here)
-				System.out.println("Received message from client: " + message);
-			}
+			long bytesRead = channel.getPayloadBytesIn();
+			while ((message = channel.readLine()) != null) {
+				if (follow) {
+					// a standby server only ever says how far it has got: "ack <seq>"
+					try {
+						if (message.startsWith("ack ")) ackedSeq = Long.parseLong(message.substring(4));
+					}
+					catch (NumberFormatException e) {
+						System.err.println("ignoring malformed ack: " + message);
+					}
+					continue;
+				}
+				EditEvent receive = new EditEvent.Receive();
+				receive.begin();
+				long id = server.handle(this, message);
+				if (receive.shouldCommit()) {
+					String[] words = message.split(" ", 3);
+					boolean tagged = !words[0].isEmpty() && Character.isDigit(words[0].charAt(0)) && words.length > 1;
+					receive.of(tagged ? words[1] : words[0], id).commit();
+				}
 
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
+				long now = channel.getPayloadBytesIn();
+				long wait = Math.max(opLimit.take(1), byteLimit.take(now - bytesRead));
+				bytesRead = now;
+				if (wait > 0) throttle(wait);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
+			server.removeCommunicator(this);
+			if (writer != null) writer.interrupt();
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// already gone
+			}
 		}
 	}
 
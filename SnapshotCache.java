@@ -0,0 +1,50 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The join snapshot of a sketch, encoded once per version of it and shared by every client that joins meanwhile.
+ *
+ * When many editors join at once, e.g. all reconnecting after a network blip, most find the board as the last one
+ * did: they get the very same Block, already encoded (and, for those that compress, already deflated), so the work
+ * grows with the number of versions joined at rather than the number of clients.
+ */
+public class SnapshotCache {
+	private final Sketch sketch;
+	private long version = -1;						// the sketch's version when snapshot was made
+	private MessageChannel.Block snapshot;			// the latest snapshot made, null before the first
+	private final LongAdder encodes = new LongAdder(), hits = new LongAdder();
+
+	public SnapshotCache(Sketch sketch) {
+		this.sketch = sketch;
+	}
+
+	/**
+	 * The snapshot of the sketch as it is now; call with the sketch held still, as the server does under its lock
+	 * @return "draw <id> <shape>" lines, bottom first, encoded
+	 */
+	public synchronized MessageChannel.Block get() {
+		long now = sketch.getVersion();
+		if (snapshot == null || now != version) {
+			snapshot = new MessageChannel.Block(sketch.toString());
+			version = now;
+			encodes.increment();
+		}
+		else {
+			hits.increment();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Snapshots made, one per version joined at
+	 */
+	public long getEncodes() {
+		return encodes.sum();
+	}
+
+	/**
+	 * Joins served a snapshot already made
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+}
@@ -0,0 +1,203 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a sketch to PNG, headless, for previews of the board without opening an Editor.
+ *
+ * A thumbnail shows what an editor zoomed out just far enough to see every shape would show: from the origin out to
+ * the furthest shape, or at least the editor's canvas, scaled to fit the size asked for and drawn by a BandedRenderer,
+ * in bands on the fork-join pool. The shapes are taken from the sketch in one go and drawn after its lock is let go,
+ * so a render holds up no op; a shape moved meanwhile may show on either side of the move, and the version having
+ * gone up, the next request renders afresh.
+ * The latest render of each size is kept along with the sketch version it shows, so asking again before the board
+ * changes costs nothing; a newer render of that size replaces it, one found out of date is dropped, and the least
+ * recently used sizes are dropped first once they take more than BUDGET bytes. Requests for a render already
+ * under way wait for it rather than making another.
+ */
+public class ThumbnailRenderer {
+	public static final int MAX_SIDE = 4096;			// pixels a side at most
+	private static final int CANVAS = 800;				// the editor's canvas, shown even when the board is emptier
+	private static final long BUDGET = Long.getLong("sketch.thumbnail.budget", 16L << 20);	// bytes of PNG kept
+
+	private final Sketch sketch;
+	private static final BandedRenderer bands = new BandedRenderer();	// shared with exports of the board's history
+	private final LinkedHashMap<String, Thumbnail> cache = new LinkedHashMap<String, Thumbnail>(16, 0.75f, true);	// by "<w>x<h>", eldest first; under this
+	private long cached = 0;							// bytes in cache
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();	// renders under way, by "<version> <w>x<h>"
+	private final LongAdder renders = new LongAdder(), hits = new LongAdder(), collapsed = new LongAdder();
+
+	/**
+	 * A render, and the sketch version it shows
+	 */
+	private static class Thumbnail {
+		final long version;
+		final byte[] png;
+
+		Thumbnail(long version, byte[] png) {
+			this.version = version;
+			this.png = png;
+		}
+	}
+
+	public ThumbnailRenderer(Sketch sketch) {
+		this.sketch = sketch;
+	}
+
+	/**
+	 * The board as a PNG of the given size, rendered at the sketch's current version or later
+	 * @param width Pixels across, 1 to MAX_SIDE
+	 * @param height Pixels down, 1 to MAX_SIDE
+	 * @throws IllegalArgumentException if the size is out of range
+	 */
+	public byte[] png(int width, int height) throws IOException {
+		if (width < 1 || height < 1 || width > MAX_SIDE || height > MAX_SIDE) {
+			throw new IllegalArgumentException("thumbnail size " + width + "x" + height);
+		}
+		// the version before taking the shapes, so an edit after is caught by the next request
+		long version = sketch.getVersion();
+		String size = width + "x" + height, key = version + " " + size;
+		byte[] png = lookup(size, version);
+		if (png != null) return png;
+		CompletableFuture<byte[]> mine = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> running = rendering.putIfAbsent(key, mine);
+		if (running != null) {
+			collapsed.increment();
+			return await(running);
+		}
+		try {
+			png = lookup(size, version);		// finished between the lookup and the putIfAbsent
+			if (png == null) {
+				png = render(width, height);
+				renders.increment();
+				remember(size, new Thumbnail(version, png));
+			}
+			mine.complete(png);
+			return png;
+		}
+		catch (IOException | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			rendering.remove(key);
+		}
+	}
+
+	/**
+	 * The render of a size kept at the given version or later, if any; one kept from before that is dropped,
+	 * as the version only grows
+	 */
+	private synchronized byte[] lookup(String size, long version) {
+		Thumbnail kept = cache.get(size);
+		if (kept == null) return null;
+		if (kept.version < version) {
+			cache.remove(size);
+			cached -= kept.png.length;
+			return null;
+		}
+		hits.increment();
+		return kept.png;
+	}
+
+	/**
+	 * Keeps a render in place of any older one of its size
+	 */
+	private synchronized void remember(String size, Thumbnail thumbnail) {
+		Thumbnail before = cache.get(size);
+		if (before != null && before.version > thumbnail.version) return;	// a later render finished first
+		if (before != null) {
+			cache.remove(size);
+			cached -= before.png.length;
+		}
+		if (thumbnail.png.length > BUDGET) return;
+		cache.put(size, thumbnail);
+		cached += thumbnail.png.length;
+		Iterator<Thumbnail> eldest = cache.values().iterator();
+		while (cached > BUDGET) {
+			cached -= eldest.next().png.length;
+			eldest.remove();
+		}
+	}
+
+	private static byte[] await(CompletableFuture<byte[]> render) throws IOException {
+		try {
+			return render.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted waiting for a thumbnail");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Draws the board and encodes it
+	 */
+	private byte[] render(int width, int height) throws IOException {
+		return png(sketch.getShapes(), width, height);
+	}
+
+	/**
+	 * Draws shapes as a thumbnail would, scaled to fit, and encodes them; not cached
+	 * @param shapes The shapes, in stacking order, e.g. a board as it was in its history
+	 * @throws IllegalArgumentException if the size is out of range
+	 */
+	public static byte[] png(List<Shape> shapes, int width, int height) throws IOException {
+		if (width < 1 || height < 1 || width > MAX_SIDE || height > MAX_SIDE) {
+			throw new IllegalArgumentException("thumbnail size " + width + "x" + height);
+		}
+		int right = CANVAS, bottom = CANVAS;
+		for (Shape shape : shapes) {
+			java.awt.Rectangle bounds = shape.getBounds();
+			right = Math.max(right, bounds.x + bounds.width + 1);
+			bottom = Math.max(bottom, bounds.y + bounds.height + 1);
+		}
+		double zoom = Math.min((double) width / right, (double) height / bottom);
+		BufferedImage image = bands.render(shapes, width, height, zoom);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Thumbnails rendered, i.e. not found in the cache nor already under way
+	 */
+	public long getRenders() {
+		return renders.sum();
+	}
+
+	/**
+	 * Thumbnails served from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Requests that waited for the same render already under way
+	 */
+	public long getCollapsed() {
+		return collapsed.sum();
+	}
+
+	/**
+	 * Bytes of PNG in the cache
+	 */
+	public synchronized long getCachedBytes() {
+		return cached;
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * A token bucket: refills at a steady rate up to a burst capacity, and each use takes tokens out.
+ * Taking more than is there puts the bucket in debt, and take() says how long to wait for the debt
+ * to be paid off; a caller that waits that long before its next use keeps to the rate.
+ * Not thread-safe: meant to be owned by one connection's thread.
+ */
+public class TokenBucket {
+	private final double perNano;		// tokens added per nanosecond
+	private final double capacity;		// most tokens the bucket holds
+	private double tokens;				// current tokens, negative when in debt
+	private long last;					// when tokens was last brought up to date
+
+	/**
+	 * @param perSecond Tokens added per second; 0 or less for no limit
+	 * @param capacity Most tokens the bucket holds, i.e. the largest burst allowed at once
+	 */
+	public TokenBucket(double perSecond, double capacity) {
+		this.perNano = perSecond / 1e9;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Takes n tokens out of the bucket
+	 * @return Nanoseconds to wait before the next use to stay within the rate, 0 if no wait is needed
+	 */
+	public long take(long n) {
+		if (perNano <= 0) return 0;
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) * perNano);
+		last = now;
+		tokens -= n;
+		return tokens >= 0 ? 0 : (long) (-tokens / perNano);
+	}
+}
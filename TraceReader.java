@@ -0,0 +1,69 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a trace written by TraceWriter.
+ */
+public class TraceReader {
+	/**
+	 * One traced event, with its time since the start of the trace
+	 */
+	public static class Record {
+		public final long nanos;		// since the trace started
+		public final int connection;
+		public final int kind;			// one of TraceWriter's kinds
+		public final String msg;
+
+		public Record(long nanos, int connection, int kind, String msg) {
+			this.nanos = nanos;
+			this.connection = connection;
+			this.kind = kind;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Reads a whole trace into memory; a record cut short at the end (e.g. the proxy was killed) is dropped
+	 * @param file The trace
+	 * @return Its records, in order
+	 */
+	public static List<Record> read(File file) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			byte[] magic = new byte[TraceWriter.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, TraceWriter.MAGIC) || in.read() != TraceWriter.VERSION) {
+				throw new IOException(file + " is not a sketch trace");
+			}
+			long nanos = 0;
+			while (true) {
+				try {
+					nanos += readVarint(in);
+					int connection = (int) readVarint(in);
+					int kind = in.readUnsignedByte();
+					byte[] bytes = new byte[(int) readVarint(in)];
+					in.readFully(bytes);
+					records.add(new Record(nanos, connection, kind, new String(bytes, StandardCharsets.UTF_8)));
+				}
+				catch (EOFException e) {
+					return records;
+				}
+			}
+		}
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long v = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+}
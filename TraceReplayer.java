@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-drives a session recorded by the capture proxy (EchoServer with a trace) against a SketchServer.
+ *
+ * Every recorded connection is opened again at its recorded time and sends what its editor sent, at the
+ * recorded pace scaled by a speed factor (1 for real time, N for N times faster, "max" for no waiting).
+ * Several copies of the whole session can run at once, to see how the server does with more clients.
+ * Shape ids embed the drawing client's id, which the server hands out afresh, so ids are mapped from the
+ * recorded clients to their replaying counterparts (separately for each copy) as they are sent.
+ * At the end it reports throughput and the time from sending each op to seeing the server pass it back.
+ *
+ * Run with: java TraceReplayer trace host port [speed] [copies]
+ */
+public class TraceReplayer {
+	private final List<TraceReader.Record> records;
+	private final String host;
+	private final int port;
+	private final double speed;					// 0 for as fast as possible
+	private final Histogram echoNanos = new Histogram();
+	private final AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+
+	public TraceReplayer(List<TraceReader.Record> records, String host, int port, double speed) {
+		this.records = records;
+		this.host = host;
+		this.port = port;
+		this.speed = speed;
+	}
+
+	/**
+	 * One recorded connection being replayed
+	 */
+	private class Client extends Thread {
+		private final long connectAt;							// in trace time
+		private final List<TraceReader.Record> toServer;		// what the editor sent, hello first
+		private final int recordedClientId;						// from the recorded welcome
+		private final Map<Integer, Integer> clientIds;			// recorded client id -> replaying one, for this copy
+		private final long start;								// nanoTime the replay started
+		private final CountDownLatch done;
+		private final Map<Integer, Long> sentAt = new ConcurrentHashMap<Integer, Long>();	// clientSeq -> nanoTime sent
+		private volatile int clientId = -1;
+
+		Client(long connectAt, List<TraceReader.Record> toServer, int recordedClientId,
+			   Map<Integer, Integer> clientIds, long start, CountDownLatch done) {
+			this.connectAt = connectAt;
+			this.toServer = toServer;
+			this.recordedClientId = recordedClientId;
+			this.clientIds = clientIds;
+			this.start = start;
+			this.done = done;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				waitUntil(connectAt);
+				try (Socket sock = new Socket(host, port)) {
+					MessageChannel channel = new MessageChannel(sock.getInputStream(), sock.getOutputStream());
+					channel.writeLine(toServer.isEmpty() ? "hello plain" : toServer.get(0).msg);
+					String[] welcome = channel.readLine().split(" ");
+					if (welcome[1].equals("deflate")) channel.enableCompression();
+					clientId = Integer.parseInt(welcome[2]);
+					if (recordedClientId >= 0) clientIds.put(recordedClientId, clientId);
+
+					Thread reader = new Thread(() -> drain(channel));
+					reader.setDaemon(true);
+					reader.start();
+
+					for (int i = 1; i < toServer.size(); i++) {
+						TraceReader.Record record = toServer.get(i);
+						waitUntil(record.nanos);
+						String msg = remap(record.msg);
+						int space = msg.indexOf(' ');
+						if (space > 0 && Character.isDigit(msg.charAt(0))) {
+							sentAt.put(Integer.parseInt(msg.substring(0, space)), System.nanoTime());
+						}
+						channel.writeLine(msg);
+						sent.incrementAndGet();
+					}
+					// give the server a moment to pass our last ops back before hanging up
+					long deadline = System.nanoTime() + 5_000_000_000L;
+					while (!sentAt.isEmpty() && System.nanoTime() < deadline) Thread.sleep(10);
+				}
+			}
+			catch (IOException | InterruptedException | RuntimeException e) {
+				System.err.println("replay of a connection failed: " + e);
+			}
+			finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Reads what the server sends, timing our own ops as they come back
+		 */
+		private void drain(MessageChannel channel) {
+			try {
+				String line;
+				while ((line = channel.readLine()) != null) {
+					received.incrementAndGet();
+					String[] words = line.split(" ", 4);
+					if (words.length == 4 && Character.isDigit(words[0].charAt(0))
+							&& Integer.parseInt(words[1]) == clientId) {
+						Long at = sentAt.remove(Integer.parseInt(words[2]));
+						if (at != null) echoNanos.record(System.nanoTime() - at);
+					}
+				}
+			}
+			catch (IOException e) {
+				// closed at the end of the replay
+			}
+		}
+
+		/**
+		 * Rewrites the shape ids in "<clientSeq> <op> <id>[,<id>...] ..." from the recorded client's range to the replaying one's
+		 */
+		private String remap(String msg) {
+			String[] words = msg.split(" ", 4);
+			if (words.length < 3 || !Character.isDigit(words[0].charAt(0)) || !Character.isDigit(words[2].charAt(0))) {
+				return msg;
+			}
+			List<Long> ids = new ArrayList<Long>();
+			for (long id : Sketch.ids(words[2])) {
+				Integer to = clientIds.get((int) (id >>> 32));
+				ids.add(to == null ? id : Sketch.id(to, (int) id));
+			}
+			return words[0] + " " + words[1] + " " + Sketch.idList(ids) + (words.length > 3 ? " " + words[3] : "");
+		}
+
+		private void waitUntil(long traceNanos) {
+			if (speed <= 0) return;
+			long target = start + (long) (traceNanos / speed);
+			long now;
+			while ((now = System.nanoTime()) < target) {
+				LockSupport.parkNanos(target - now);
+			}
+		}
+	}
+
+	/**
+	 * Replays the session the given number of times at once, and waits for it to finish
+	 */
+	public void replay(int copies) throws InterruptedException {
+		// Split the trace up by connection
+		Map<Integer, List<TraceReader.Record>> toServer = new LinkedHashMap<Integer, List<TraceReader.Record>>();
+		Map<Integer, Long> connectAt = new LinkedHashMap<Integer, Long>();
+		Map<Integer, Integer> recordedIds = new LinkedHashMap<Integer, Integer>();
+		for (TraceReader.Record record : records) {
+			if (record.kind == TraceWriter.CONNECT) {
+				connectAt.put(record.connection, record.nanos);
+				toServer.put(record.connection, new ArrayList<TraceReader.Record>());
+			}
+			else if (record.kind == TraceWriter.TO_SERVER && toServer.containsKey(record.connection)) {
+				toServer.get(record.connection).add(record);
+			}
+			else if (record.kind == TraceWriter.TO_CLIENT && !recordedIds.containsKey(record.connection)
+					&& record.msg.startsWith("welcome ")) {
+				recordedIds.put(record.connection, Integer.parseInt(record.msg.split(" ")[2]));
+			}
+		}
+
+		CountDownLatch done = new CountDownLatch(copies * connectAt.size());
+		long start = System.nanoTime();
+		for (int copy = 0; copy < copies; copy++) {
+			Map<Integer, Integer> clientIds = new ConcurrentHashMap<Integer, Integer>();
+			for (int connection : connectAt.keySet()) {
+				new Client(connectAt.get(connection), toServer.get(connection),
+						recordedIds.getOrDefault(connection, -1), clientIds, start, done).start();
+			}
+		}
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("replayed %d connections x %d copies in %.2f s%n", connectAt.size(), copies, seconds);
+		System.out.printf("sent %,d messages (%.0f/s), received %,d%n", sent.get(), sent.get() / seconds, received.get());
+		System.out.println("echo latency us: " + echoNanos.summary(1000));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: java TraceReplayer trace host port [speed|max] [copies]");
+			System.exit(1);
+		}
+		double speed = args.length > 3 ? (args[3].equals("max") ? 0 : Double.parseDouble(args[3])) : 1;
+		int copies = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		List<TraceReader.Record> records = TraceReader.read(new File(args[0]));
+		new TraceReplayer(records, args[1], Integer.parseInt(args[2]), speed).replay(copies);
+	}
+}
@@ -0,0 +1,63 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a compact binary trace of the messages passing between editors and a server.
+ *
+ * The file starts with the magic "SKTR" and a version byte, followed by records of
+ * [varint nanoseconds since the previous record][varint connection][kind byte][varint length][UTF-8 message].
+ * Kinds are CONNECT and CLOSE (with empty messages), TO_SERVER and TO_CLIENT.
+ * Safe to use from every connection's threads at once; records come out in the order they were written.
+ */
+public class TraceWriter implements Closeable {
+	public static final byte[] MAGIC = {'S', 'K', 'T', 'R'};
+	public static final int VERSION = 1;
+	public static final int CONNECT = 0, TO_SERVER = 1, TO_CLIENT = 2, CLOSE = 3;	// record kinds
+
+	private final DataOutputStream out;
+	private long last;					// nanoTime of the previous record
+	private long records = 0;
+
+	public TraceWriter(File file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.write(MAGIC);
+		out.write(VERSION);
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Appends one record, timestamped now
+	 * @param connection Which connection it happened on
+	 * @param kind CONNECT, TO_SERVER, TO_CLIENT or CLOSE
+	 * @param msg The message, or "" for CONNECT and CLOSE
+	 */
+	public synchronized void write(int connection, int kind, String msg) throws IOException {
+		long now = System.nanoTime();
+		writeVarint(now - last);
+		last = now;
+		writeVarint(connection);
+		out.write(kind);
+		byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes);
+		// keep the file useful if the proxy is killed, without flushing on every message
+		if (++records % 1024 == 0 || kind == CLOSE) out.flush();
+	}
+
+	private void writeVarint(long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+}